@@ -1,4 +1,6 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
 
 /**
@@ -27,9 +29,25 @@ public class ADUflixApp {
     private static final String MENU_SEPARATOR = "=" + "=".repeat(30);
     private static final double DEFAULT_MIN_RATING = 0.0;
     private static final int DEFAULT_MAX_DURATION = 200;
+    private static final long TRENDING_HALF_LIFE_MILLIS = 24L * 60 * 60 * 1000;
+    private static final int TRENDING_LIST_SIZE = 20;
+    private static final int REFRESH_THREADS = 2;
+    private static final int MAX_ACTIVE_USERS = 1000;
+    private static final long MAX_STALENESS_MILLIS = 30_000;
+    // Serves precomputed recommendations, refreshed in the background
+    private static RecommendationScheduler scheduler;
+    // Streams local assets (assets/<mediaId>.asset) when they exist
+    private static final PlaybackEngine playback = new PlaybackEngine(java.nio.file.Paths.get("assets"));
 
     public static void main(String[] args) {
         System.out.println("Welcome to ADUflix!");
+        // Count watch events in the library statistics
+        User.addWatchListener(library.getStatistics());
+        // Trending list served to users without watch history
+        TrendingEngine trending = new TrendingEngine(library, TRENDING_HALF_LIFE_MILLIS, TRENDING_LIST_SIZE);
+        User.addWatchListener(trending);
+        RecommendationEngine.setTrendingEngine(trending);
+        scheduler = new RecommendationScheduler(library, REFRESH_THREADS, MAX_ACTIVE_USERS, MAX_STALENESS_MILLIS).start();
         
         // Create or select user
         setupUser();
@@ -70,9 +88,11 @@ public class ADUflixApp {
                         break;
                     case "10":
                         // Save user data before exiting
-                        currentUser.logout();
+                        currentUser.logout(library);
                         System.out.println("Your watch history has been saved.");
                         running = false;
+                        scheduler.close();
+                        playback.close();
                         System.out.println("Thank you for using ADUflix! Goodbye!");
                         break;
                     default:
@@ -100,7 +120,7 @@ public class ADUflixApp {
         String username = getUserInput("Enter your username: ");
         
         // Try to load existing user data
-        User loadedUser = User.loadUserData(username);
+        User loadedUser = User.loadUserData(username, library);
         
         if (loadedUser != null) {
             currentUser = loadedUser;
@@ -184,9 +204,10 @@ public class ADUflixApp {
         for (Media m : results) {
             if (m instanceof Playable) {
                 ((Playable) m).play();
+                streamAsset((Playable) m);
                 currentUser.watchMedia(m);
                 // Auto-save watch history after adding new item
-                currentUser.logout();
+                currentUser.logout(library);
                 System.out.println("Added to your watch history!");
             } else {
                 System.out.println("This media item is not playable.");
@@ -194,6 +215,42 @@ public class ADUflixApp {
         }
     }
     
+    /**
+     * Plays the local asset of a media item, if there is one. There is no player in
+     * the console, so the stream goes to a sink that discards it; only the session
+     * statistics are shown.
+     */
+    private static void streamAsset(Playable item) {
+        if (!playback.hasAsset(item.getId())) {
+            return;
+        }
+        WritableByteChannel discard = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer source) {
+                int length = source.remaining();
+                source.position(source.limit());
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        try (PlaybackSession session = item.play(playback, discard)) {
+            session.await();
+            System.out.println(session);
+        } catch (IOException e) {
+            System.out.println("Playback failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
     /**
      * Gets and displays personalized recommendations
      */
@@ -202,7 +259,7 @@ public class ADUflixApp {
             double minRating = getDoubleInput("Enter minimum rating (0.0-10.0, default " + DEFAULT_MIN_RATING + "): ", DEFAULT_MIN_RATING);
             int maxDuration = getIntInput("Enter maximum duration in minutes (default " + DEFAULT_MAX_DURATION + "): ", DEFAULT_MAX_DURATION);
             
-            ArrayList<Media> recommendations = currentUser.getRecommendations(library, minRating, maxDuration);
+            ArrayList<Media> recommendations = scheduler.getRecommendations(currentUser, minRating, maxDuration);
             
             System.out.println("\n" + MENU_SEPARATOR);
             System.out.println("Personalized Recommendations");
@@ -248,7 +305,7 @@ public class ADUflixApp {
             double minRating = getDoubleInput("Enter minimum rating for recommendations (0.0-10.0, default " + DEFAULT_MIN_RATING + "): ", DEFAULT_MIN_RATING);
             int maxDuration = getIntInput("Enter maximum duration in minutes (default " + DEFAULT_MAX_DURATION + "): ", DEFAULT_MAX_DURATION);
             
-            ArrayList<Media> recommendations = currentUser.getRecommendations(library, minRating, maxDuration);
+            ArrayList<Media> recommendations = scheduler.getRecommendations(currentUser, minRating, maxDuration);
             
             String filename = getUserInput("Enter filename for recommendations export (default: recommendations_" + currentUser.getUserId() + ".txt): ");
             if (filename.trim().isEmpty()) {
@@ -276,29 +333,49 @@ public class ADUflixApp {
         System.out.println("Total Media in Library: " + library.getAllMedia().size());
         System.out.println("Total Recommendations Generated (All Users): " + RecommendationEngine.getTotalRecommendationsGenerated());
         
-        // Display genre analysis for current user using only ArrayList
-        ArrayList<String> genreList = RecommendationEngine.analyzeUserGenrePreferences(currentUser);
-        if (!genreList.isEmpty()) {
-            System.out.println("\nYour Genre Preferences:");
-            
-            // Count genres manually using ArrayList
-            ArrayList<String> uniqueGenres = new ArrayList<>();
-            ArrayList<Integer> genreCounts = new ArrayList<>();
-            
-            for (String genre : genreList) {
-                int index = uniqueGenres.indexOf(genre);
-                if (index == -1) {
-                    uniqueGenres.add(genre);
-                    genreCounts.add(1);
-                } else {
-                    genreCounts.set(index, genreCounts.get(index) + 1);
-                }
+        // Library breakdown, read from the incrementally maintained statistics
+        LibraryStatistics stats = library.getStatistics();
+        System.out.println("Total Watches (All Users): " + stats.getTotalWatches());
+        if (stats.getTotalItems() > 0) {
+            System.out.println("\nMedia by Type:");
+            for (Map.Entry<String, Long> entry : stats.getCountsByType().entrySet()) {
+                System.out.println("- " + entry.getKey() + ": " + entry.getValue() + " items");
+            }
+            System.out.println("\nMedia by Genre:");
+            for (Map.Entry<String, Long> entry : stats.getCountsByGenre().entrySet()) {
+                System.out.println("- " + entry.getKey() + ": " + entry.getValue() + " items");
+            }
+        }
+        
+        // Latency histograms and counters of the instrumented operations
+        Metrics.Snapshot metrics = Metrics.snapshot();
+        if (!metrics.getTimers().isEmpty()) {
+            System.out.println("\nPerformance:");
+            for (Map.Entry<String, LatencyHistogram.Summary> entry : metrics.getTimers().entrySet()) {
+                System.out.println("- " + entry.getKey() + ": " + entry.getValue());
             }
+        }
+        
+        // Estimated heap use, so growth can be traced without a heap dump
+        MemoryFootprint libraryMemory = library.estimateMemory();
+        System.out.println("\nMemory (estimated):");
+        System.out.println("- " + libraryMemory.toString().replace("\n", "\n  "));
+        System.out.println("- Your watch history: " + MemoryFootprint.formatBytes(currentUser.estimateMemory()));
+        System.out.println("- Precomputed recommendations (" + scheduler.getActiveUserCount() + " users): "
+                + MemoryFootprint.formatBytes(scheduler.estimateMemory()));
+        Runtime runtime = Runtime.getRuntime();
+        System.out.println("- JVM heap used: " + MemoryFootprint.formatBytes(runtime.totalMemory() - runtime.freeMemory())
+                + " of " + MemoryFootprint.formatBytes(runtime.maxMemory()));
+        
+        // Display genre analysis for current user from the counts kept by User
+        Map<String, Integer> genreCounts = currentUser.getGenreCounts();
+        if (!genreCounts.isEmpty()) {
+            System.out.println("\nYour Genre Preferences:");
             
             // Create pairs for sorting and use ArrayList's sort method
             ArrayList<GenreCount> genrePairs = new ArrayList<>();
-            for (int i = 0; i < uniqueGenres.size(); i++) {
-                genrePairs.add(new GenreCount(uniqueGenres.get(i), genreCounts.get(i)));
+            for (Map.Entry<String, Integer> entry : genreCounts.entrySet()) {
+                genrePairs.add(new GenreCount(entry.getKey(), entry.getValue()));
             }
             
             // Sort by count (highest first) using ArrayList's sort method
@@ -0,0 +1,184 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * CatalogIngestor loads many catalog files (for example one per partner) into a
+ * MediaLibrary.
+ *
+ * - Files are parsed concurrently on a bounded pool; bad lines are rejected per
+ *   line like MediaLibrary.loadFromFileLenient, and every file gets its own LoadReport.
+ * - Nothing reaches the library until all files are parsed; the merged result is
+ *   then published with one MediaLibrary.addBatch call.
+ * - Duplicate IDs are resolved by the DuplicatePolicy. "Later" means later in the
+ *   list of files (directories are read in file name order), then later in the file.
+ */
+public class CatalogIngestor {
+
+    public enum DuplicatePolicy {
+        // The last definition of an ID wins, including over an item already in the library
+        LAST_WRITER_WINS,
+        // The first definition wins; items already in the library are kept
+        FIRST_WRITER_WINS
+    }
+
+    /**
+     * Outcome of one ingest: a report per file (in the order the files were given)
+     * and how the merged items were published.
+     */
+    public static class Result {
+        private final ArrayList<LoadReport> reports;
+        private final int published;
+        private final int duplicatesInBatch;
+        private final int clashesWithLibrary;
+
+        Result(ArrayList<LoadReport> reports, int published, int duplicatesInBatch, int clashesWithLibrary) {
+            this.reports = reports;
+            this.published = published;
+            this.duplicatesInBatch = duplicatesInBatch;
+            this.clashesWithLibrary = clashesWithLibrary;
+        }
+
+        public ArrayList<LoadReport> getReports() {
+            return reports;
+        }
+
+        // Distinct IDs handed to the library (including ones that replaced or lost to existing items)
+        public int getPublished() {
+            return published;
+        }
+
+        // Items dropped because another file (or line) defined the same ID
+        public int getDuplicatesInBatch() {
+            return duplicatesInBatch;
+        }
+
+        // Published IDs that were already in the library (replaced or skipped, depending on the policy)
+        public int getClashesWithLibrary() {
+            return clashesWithLibrary;
+        }
+
+        public boolean hasProblems() {
+            for (LoadReport report : reports) {
+                if (report.isFailed() || report.hasRejections()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "IngestResult [Files: " + reports.size() + ", Published: " + published +
+                   ", Duplicates: " + duplicatesInBatch + ", Already in library: " + clashesWithLibrary + "]";
+        }
+    }
+
+    private final MediaLibrary library;
+    private final int threads;
+    private final DuplicatePolicy policy;
+
+    // Duplicate IDs resolved with LAST_WRITER_WINS
+    public CatalogIngestor(MediaLibrary library, int threads) {
+        this(library, threads, DuplicatePolicy.LAST_WRITER_WINS);
+    }
+
+    public CatalogIngestor(MediaLibrary library, int threads, DuplicatePolicy policy) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.library = library;
+        this.threads = threads;
+        this.policy = policy;
+    }
+
+    // Ingests every .csv and .txt file in a directory, in file name order
+    public Result ingestDirectory(String directory) throws InvalidMediaDataException {
+        File[] files = new File(directory).listFiles((dir, name) -> name.endsWith(".csv") || name.endsWith(".txt"));
+        if (files == null) {
+            throw new InvalidMediaDataException("Cannot read directory '" + directory + "'");
+        }
+        Arrays.sort(files);
+        ArrayList<String> filenames = new ArrayList<>();
+        for (File file : files) {
+            filenames.add(file.getPath());
+        }
+        return ingest(filenames);
+    }
+
+    /*
+     * Parses the files concurrently, merges them and publishes the result. A file that
+     * cannot be read is reported as failed and contributes nothing; the others still load.
+     */
+    public Result ingest(List<String> filenames) {
+        Metrics.Span span = Metrics.begin("library.ingest");
+        ArrayList<LoadReport> reports = new ArrayList<>();
+        int published = 0;
+        try {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, filenames.size())));
+            ArrayList<Future<ArrayList<Media>>> parsed = new ArrayList<>();
+            try {
+                for (String filename : filenames) {
+                    LoadReport report = new LoadReport(filename);
+                    reports.add(report);
+                    parsed.add(pool.submit(() -> parseFile(filename, report)));
+                }
+
+                // Merge in file order so "last" and "first" are well defined
+                LinkedHashMap<String, Media> merged = new LinkedHashMap<>();
+                int duplicates = 0;
+                for (Future<ArrayList<Media>> future : parsed) {
+                    for (Media media : waitFor(future)) {
+                        Media previous = policy == DuplicatePolicy.LAST_WRITER_WINS
+                                ? merged.put(media.getId(), media)
+                                : merged.putIfAbsent(media.getId(), media);
+                        if (previous != null) {
+                            duplicates++;
+                        }
+                    }
+                }
+                published = merged.size();
+                int clashes = library.addBatch(merged.values(), policy == DuplicatePolicy.LAST_WRITER_WINS);
+                return new Result(reports, published, duplicates, clashes);
+            } finally {
+                pool.shutdownNow();
+            }
+        } finally {
+            span.end(published);
+        }
+    }
+
+    // Reads one file leniently; runs on a pool thread and only touches its own report
+    private static ArrayList<Media> parseFile(String filename, LoadReport report) {
+        ArrayList<Media> items = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                try {
+                    items.add(MediaLibrary.parseTokens(line.split(","), lineNumber, null));
+                    report.recordLoaded();
+                } catch (InvalidMediaDataException e) {
+                    report.recordRejected(lineNumber, line, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            report.recordFailure("Error reading file '" + filename + "': " + e.getMessage());
+            report.discardLoaded();
+            items.clear();
+        }
+        return items;
+    }
+
+    private static ArrayList<Media> waitFor(Future<ArrayList<Media>> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while ingesting catalog files", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Catalog file could not be parsed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,588 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * CatalogJournal makes MediaLibrary mutations durable with a write-ahead log
+ * plus periodic binary checkpoints.
+ *
+ * Every add/remove is appended to the log (catalog.wal) as a sequence-numbered,
+ * CRC-protected record before the library applies it (CatalogListener.mediaAdding
+ * and friends). If the record cannot be written, the mutation fails with an
+ * UncheckedIOException and the library is left unchanged.
+ *
+ * Bulk loads (file loads and MediaLibrary.addBatch) are the exception: their
+ * changes are collected as they are applied and written as one batch record when
+ * the load finishes, instead of one write per line. That record is not written
+ * ahead: a crash during the load loses the items loaded so far (or keeps some of
+ * them if a checkpoint ran meanwhile), and a failed write is reported to the
+ * loading caller after the items are already in the library. A checkpoint is then
+ * started right away, which makes them durable.
+ *
+ * Every 'checkpointInterval' mutations the log is rotated to catalog.wal.<sequence>
+ * and the items are written to catalog.checkpoint (via a temp file and an atomic
+ * rename) on a background thread. That thread copies the items between two
+ * mutations and retries if one started while it was copying; only when the library
+ * keeps changing does a mutation wait for its last copy. Rotated segments are
+ * deleted once a checkpoint covers them.
+ * Recovery loads the last checkpoint and replays only the log records newer than
+ * it, so it never has to reparse the original CSV.
+ *
+ * A torn record at the end of the log (crash in the middle of a write) is
+ * detected by its length/CRC and cut off during recovery.
+ */
+public class CatalogJournal implements CatalogListener, Closeable {
+    private static final String CHECKPOINT_FILE = "catalog.checkpoint";
+    private static final String LOG_FILE = "catalog.wal";
+    private static final int CHECKPOINT_MAGIC = 0x41444643; // "ADFC"
+    private static final int FORMAT_VERSION = 1;
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    // Replaces the item with the same ID in place (see MediaLibrary.updateMedia)
+    private static final byte OP_UPDATE = 3;
+    // A bulk load: [count] then [op][media] per change, all under one sequence number
+    private static final byte OP_BATCH = 4;
+    // Copies of the items a checkpoint may take (the last one blocks mutations)
+    private static final int CAPTURE_ATTEMPTS = 3;
+    private static final long CAPTURE_WAIT_MILLIS = 100;
+
+    // One daemon thread writes the checkpoints of every journal
+    private static final ExecutorService CHECKPOINTER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "catalog-checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path directory;
+    private final MediaLibrary library;
+    private final int checkpointInterval;
+    private final boolean syncEachWrite;
+    private FileChannel log;
+    // Last logged record, and the last one the library has applied
+    private long sequence;
+    private long appliedSequence;
+    private int sinceCheckpoint = 0;
+    private Future<?> pendingCheckpoint;
+    // Mutations started and finished (a checkpoint copies the items when they are equal)
+    private long changes = 0;
+    private long appliedChanges = 0;
+    // Open bulk-load brackets, and the changes of the outermost one not written yet
+    private int bulkDepth = 0;
+    private int bulkCount = 0;
+    private ByteArrayOutputStream bulkRecords;
+
+    private CatalogJournal(Path directory, MediaLibrary library, int checkpointInterval,
+                           boolean syncEachWrite, long sequence) throws IOException {
+        this.directory = directory;
+        this.library = library;
+        this.checkpointInterval = checkpointInterval;
+        this.syncEachWrite = syncEachWrite;
+        this.sequence = sequence;
+        this.appliedSequence = sequence;
+        this.log = openLog(directory);
+    }
+
+    private static FileChannel openLog(Path directory) throws IOException {
+        return FileChannel.open(directory.resolve(LOG_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /*
+     * Recovers the catalog stored in 'directory' into the (empty) library and starts
+     * journaling its later mutations.
+     * checkpointInterval: number of mutations between checkpoints
+     * syncEachWrite: force every log record to disk (slower, survives power loss)
+     */
+    public static CatalogJournal open(String directory, MediaLibrary library,
+                                      int checkpointInterval, boolean syncEachWrite) throws IOException {
+        if (checkpointInterval <= 0) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive");
+        }
+        Path dir = Paths.get(directory);
+        Files.createDirectories(dir);
+        long checkpointSequence = loadCheckpoint(dir.resolve(CHECKPOINT_FILE), library);
+        long lastSequence = checkpointSequence;
+        // Segments a crash left behind (checkpoint not written yet), oldest first, then the live log
+        for (Path segment : logSegments(dir)) {
+            lastSequence = Math.max(lastSequence, replayLog(segment, library, checkpointSequence));
+        }
+        lastSequence = Math.max(lastSequence, replayLog(dir.resolve(LOG_FILE), library, checkpointSequence));
+        CatalogJournal journal = new CatalogJournal(dir, library, checkpointInterval, syncEachWrite, lastSequence);
+        library.addCatalogListener(journal);
+        return journal;
+    }
+
+    @Override
+    public void mediaAdding(Media media) {
+        append(OP_ADD, media);
+    }
+
+    @Override
+    public void mediaRemoving(Media media) {
+        append(OP_REMOVE, media);
+    }
+
+    @Override
+    public void mediaUpdating(Media previous, Media updated) {
+        append(OP_UPDATE, updated);
+    }
+
+    @Override
+    public synchronized void mediaAdded(Media media) {
+        applied(OP_ADD, media);
+    }
+
+    @Override
+    public synchronized void mediaUpdated(Media previous, Media updated) {
+        applied(OP_UPDATE, updated);
+    }
+
+    @Override
+    public synchronized void mediaRemoved(Media media) {
+        applied(OP_REMOVE, media);
+    }
+
+    @Override
+    public synchronized void bulkLoadStarted(String source) {
+        if (bulkDepth++ == 0) {
+            bulkRecords = new ByteArrayOutputStream();
+            bulkCount = 0;
+        }
+    }
+
+    // Writes the changes of the outermost bulk load as one batch record
+    @Override
+    public synchronized void bulkLoadFinished(String source, int count) {
+        if (--bulkDepth > 0) {
+            return;
+        }
+        byte[] changesRecorded = bulkRecords.toByteArray();
+        int changeCount = bulkCount;
+        bulkRecords = null;
+        notifyAll();
+        if (changeCount == 0) {
+            return;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream(changesRecorded.length + 4);
+        try {
+            new DataOutputStream(body).writeInt(changeCount);
+            body.write(changesRecorded);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not encode catalog change", e);
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream(body.size() + 32);
+        encode(record, sequence + 1, OP_BATCH, body.toByteArray());
+        try {
+            writeLog(record.toByteArray(), 1);
+        } catch (UncheckedIOException e) {
+            // The items are in the library already: a checkpoint is the only way to keep them
+            startCheckpoint();
+            throw e;
+        }
+        appliedSequence = sequence;
+        sinceCheckpoint += changeCount - 1;
+        checkpointIfDue();
+    }
+
+    // Sequence number of the last journaled mutation
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /*
+     * Appends one log record: [payload length][sequence][op][media][crc32].
+     * Runs before the mutation is applied; a failed write is cut off again and
+     * reported to the mutating caller as an UncheckedIOException, which aborts it.
+     */
+    private synchronized void append(byte op, Media media) {
+        changes++;
+        if (bulkDepth > 0) {
+            return;   // logged with the rest of the bulk load when it finishes
+        }
+        ByteArrayOutputStream records = new ByteArrayOutputStream(128);
+        encode(records, sequence + 1, op, encode(media));
+        writeLog(records.toByteArray(), 1);
+    }
+
+    // A batch always runs inside its own bulk-load bracket, so it is logged as one record
+    @Override
+    public synchronized void batchAdding(List<Media> added, List<Media> replaced) {
+        changes++;
+    }
+
+    @Override
+    public synchronized void batchAdded(List<Media> added, List<Media> replaced) {
+        for (int i = 0; i < added.size(); i++) {
+            record(replaced.get(i) == null ? OP_ADD : OP_UPDATE, added.get(i));
+        }
+        appliedChanges = changes;
+    }
+
+    private static byte[] encode(Media media) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            MediaCodec.write(new DataOutputStream(bytes), media);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not encode catalog change", e);
+        }
+    }
+
+    private static void encode(ByteArrayOutputStream records, long recordSequence, byte op, byte[] body) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 32);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0); // payload length, filled in below
+            out.writeLong(recordSequence);
+            out.writeByte(op);
+            out.write(body);
+            CRC32 crc = new CRC32();
+            byte[] record = bytes.toByteArray();
+            crc.update(record, 4, record.length - 4);
+            out.writeInt((int) crc.getValue());
+            record = bytes.toByteArray();
+            ByteBuffer.wrap(record).putInt(0, record.length - 8);
+            records.write(record);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not encode catalog change", e);
+        }
+    }
+
+    // Writes encoded records holding the next 'count' sequence numbers
+    private void writeLog(byte[] records, int count) {
+        long start = -1;
+        try {
+            start = log.size();
+            ByteBuffer buffer = ByteBuffer.wrap(records);
+            while (buffer.hasRemaining()) {
+                log.write(buffer);
+            }
+            if (syncEachWrite) {
+                log.force(false);
+            }
+            sequence += count;
+        } catch (IOException e) {
+            if (start >= 0) {
+                try {
+                    // Later records must not follow a torn one, or recovery would stop there
+                    log.truncate(start);
+                } catch (IOException ignored) {
+                    // Recovery cuts the log at the torn record
+                }
+            }
+            throw new UncheckedIOException("Could not journal catalog change", e);
+        }
+    }
+
+    // Inside a bulk load, keeps an applied change for the batch record
+    private void record(byte op, Media media) {
+        if (bulkDepth > 0) {
+            try {
+                DataOutputStream out = new DataOutputStream(bulkRecords);
+                out.writeByte(op);
+                MediaCodec.write(out, media);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not encode catalog change", e);
+            }
+            bulkCount++;
+        }
+    }
+
+    // The library applied a change: checkpoint in the background when due
+    private void applied(byte op, Media media) {
+        record(op, media);
+        appliedChanges = changes;
+        if (bulkDepth == 0) {
+            appliedSequence = sequence;
+            checkpointIfDue();
+        }
+        notifyAll();
+    }
+
+    private void checkpointIfDue() {
+        if (++sinceCheckpoint >= checkpointInterval) {
+            startCheckpoint();
+        }
+    }
+
+    // Rotates the log here and leaves copying and writing the items to the checkpoint thread
+    private void startCheckpoint() {
+        if (pendingCheckpoint != null && !pendingCheckpoint.isDone()) {
+            return;
+        }
+        try {
+            rotate();
+            pendingCheckpoint = CHECKPOINTER.submit(() -> {
+                try {
+                    write(capture());
+                } catch (IOException e) {
+                    // The rotated segment is kept, so nothing is lost; the next checkpoint retries
+                    System.out.println("Catalog checkpoint failed: " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            System.out.println("Could not rotate the catalog log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The items as of one applied sequence, captured for a checkpoint
+     */
+    private static final class Snapshot {
+        final List<Media> items;
+        final long sequence;
+
+        Snapshot(List<Media> items, long sequence) {
+            this.items = items;
+            this.sequence = sequence;
+        }
+    }
+
+    /*
+     * Writes the whole catalog to a new checkpoint now, waiting for a background one
+     * in progress. Call it from the thread that changes the library.
+     */
+    public void checkpoint() throws IOException {
+        waitForCheckpoint();
+        synchronized (this) {
+            rotate();
+        }
+        write(capture());
+    }
+
+    /*
+     * Moves the log records up to the last applied one to their own segment, so the
+     * live log only holds newer ones. O(1): the items are copied later by capture().
+     */
+    private void rotate() throws IOException {
+        log.close();
+        Files.move(directory.resolve(LOG_FILE), directory.resolve(LOG_FILE + "." + appliedSequence),
+                StandardCopyOption.REPLACE_EXISTING);
+        log = openLog(directory);
+        sinceCheckpoint = 0;
+    }
+
+    /*
+     * Copies the items together with the sequence they reflect. The copy is taken
+     * while no mutation is under way and kept only if none started during it, since
+     * replaying a record the copy already holds would add its item twice. The last
+     * attempt holds the lock while copying, so a busy library still gets checkpoints.
+     */
+    private Snapshot capture() throws IOException {
+        for (int attempt = 0; attempt < CAPTURE_ATTEMPTS; attempt++) {
+            long changesBefore;
+            long capturedSequence;
+            synchronized (this) {
+                while (appliedChanges != changes) {
+                    try {
+                        wait(CAPTURE_WAIT_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting to copy the catalog");
+                    }
+                }
+                if (bulkDepth > 0) {
+                    throw new IOException("A bulk load is in progress");
+                }
+                if (attempt == CAPTURE_ATTEMPTS - 1) {
+                    // Still changing: copy under the lock, so the next mutation waits for it
+                    return new Snapshot(library.getAllMedia(), appliedSequence);
+                }
+                changesBefore = changes;
+                capturedSequence = appliedSequence;
+            }
+            List<Media> items = library.getAllMedia();
+            synchronized (this) {
+                if (changes == changesBefore) {
+                    return new Snapshot(items, capturedSequence);
+                }
+            }
+        }
+        throw new IOException("The catalog kept changing while it was copied");
+    }
+
+    /*
+     * Writes a checkpoint and then deletes the log segments it covers. The checkpoint
+     * records the last sequence it contains, so if a crash happens after the rename
+     * but before the delete, the old segments are skipped during recovery.
+     */
+    private void write(Snapshot snapshot) throws IOException {
+        Metrics.Span span = Metrics.begin("journal.checkpoint");
+        Path temp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(snapshot.sequence);
+            out.writeInt(snapshot.items.size());
+            for (Media media : snapshot.items) {
+                MediaCodec.write(out, media);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp, directory.resolve(CHECKPOINT_FILE),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (Path segment : logSegments(directory)) {
+            if (segmentSequence(segment) <= snapshot.sequence) {
+                Files.deleteIfExists(segment);
+            }
+        }
+        span.end(snapshot.items.size());
+    }
+
+    private void waitForCheckpoint() throws IOException {
+        Future<?> pending;
+        synchronized (this) {
+            pending = pendingCheckpoint;
+        }
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a checkpoint");
+        } catch (ExecutionException e) {
+            throw new IOException("Checkpoint failed", e.getCause());
+        }
+    }
+
+    // Waits for a background checkpoint in progress, then closes the log
+    @Override
+    public void close() throws IOException {
+        library.removeCatalogListener(this);
+        waitForCheckpoint();
+        synchronized (this) {
+            log.close();
+        }
+    }
+
+    // Rotated log segments (catalog.wal.<sequence>), oldest first
+    private static List<Path> logSegments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, LOG_FILE + ".*")) {
+            for (Path file : files) {
+                if (segmentSequence(file) >= 0) {
+                    segments.add(file);
+                }
+            }
+        }
+        segments.sort((a, b) -> Long.compare(segmentSequence(a), segmentSequence(b)));
+        return segments;
+    }
+
+    // The sequence in a segment's name, or -1 if it is not a segment
+    private static long segmentSequence(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(LOG_FILE.length() + 1));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    // Loads the checkpoint into the library and returns the sequence it covers
+    private static long loadCheckpoint(Path file, MediaLibrary library) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                throw new IOException("Not a catalog checkpoint: " + file);
+            }
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version);
+            }
+            long checkpointSequence = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                library.addMedia(MediaCodec.read(in));
+            }
+            return checkpointSequence;
+        }
+    }
+
+    /*
+     * Replays log records newer than the checkpoint and returns the last sequence
+     * seen. Stops at the first incomplete or corrupt record and truncates the log
+     * there, so new records are appended after the last good one.
+     */
+    private static long replayLog(Path file, MediaLibrary library, long checkpointSequence) throws IOException {
+        long lastSequence = checkpointSequence;
+        if (!Files.exists(file)) {
+            return lastSequence;
+        }
+        long validBytes = 0;
+        long fileSize = Files.size(file);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > fileSize) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                int storedCrc;
+                try {
+                    in.readFully(payload);
+                    storedCrc = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != storedCrc) {
+                    break;
+                }
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                long recordSequence = record.readLong();
+                byte op = record.readByte();
+                if (recordSequence > checkpointSequence) {
+                    if (op == OP_BATCH) {
+                        int count = record.readInt();
+                        for (int i = 0; i < count; i++) {
+                            byte change = record.readByte();
+                            replay(library, change, MediaCodec.read(record));
+                        }
+                    } else {
+                        replay(library, op, MediaCodec.read(record));
+                    }
+                    lastSequence = recordSequence;
+                }
+                validBytes += 4 + length + 4;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            if (channel.size() > validBytes) {
+                channel.truncate(validBytes);
+            }
+        }
+        return lastSequence;
+    }
+
+    private static void replay(MediaLibrary library, byte op, Media media) {
+        if (op == OP_ADD) {
+            library.addMedia(media);
+        } else if (op == OP_REMOVE) {
+            library.removeMedia(media);
+        } else if (op == OP_UPDATE && !library.updateMedia(media)) {
+            library.addMedia(media);
+        }
+    }
+}
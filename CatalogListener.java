@@ -0,0 +1,73 @@
+import java.util.List;
+
+/**
+ * Listener interface for catalog mutations.
+ * Implementations are registered with MediaLibrary.addCatalogListener and are
+ * called after every successful add or remove.
+ *
+ * The mediaAdding/mediaRemoving/mediaUpdating hooks run before the change is made
+ * (for write-ahead logging, see CatalogJournal). A hook that throws aborts the
+ * change: the library stays as it was and the exception reaches the caller.
+ *
+ * The default methods let simple listeners ignore the finer events: an update is
+ * reported as a remove plus an add, and bulk-load brackets are ignored (the items
+ * of a bulk load still arrive one mediaAdded call at a time).
+ */
+public interface CatalogListener {
+    void mediaAdded(Media media);
+
+    void mediaRemoved(Media media);
+
+    // About to store 'media'; throw to abort the add
+    default void mediaAdding(Media media) {
+    }
+
+    // About to remove 'media' (only called when it is in the library); throw to abort
+    default void mediaRemoving(Media media) {
+    }
+
+    // About to replace 'previous' with 'updated'; throw to abort
+    default void mediaUpdating(Media previous, Media updated) {
+        mediaRemoving(previous);
+        mediaAdding(updated);
+    }
+
+    /*
+     * About to apply a batch (see MediaLibrary.addBatch): added.get(i) replaces
+     * replaced.get(i), or is new when that is null. Throw to abort the whole batch.
+     */
+    default void batchAdding(List<Media> added, List<Media> replaced) {
+        for (int i = 0; i < added.size(); i++) {
+            if (replaced.get(i) == null) {
+                mediaAdding(added.get(i));
+            } else {
+                mediaUpdating(replaced.get(i), added.get(i));
+            }
+        }
+    }
+
+    // A batch was applied as one change; by default reported item by item
+    default void batchAdded(List<Media> added, List<Media> replaced) {
+        for (int i = 0; i < added.size(); i++) {
+            if (replaced.get(i) == null) {
+                mediaAdded(added.get(i));
+            } else {
+                mediaUpdated(replaced.get(i), added.get(i));
+            }
+        }
+    }
+
+    // 'updated' replaced 'previous' (same ID), see MediaLibrary.updateMedia
+    default void mediaUpdated(Media previous, Media updated) {
+        mediaRemoved(previous);
+        mediaAdded(updated);
+    }
+
+    // A file load or batch starts; its adds/removes follow until bulkLoadFinished
+    default void bulkLoadStarted(String source) {
+    }
+
+    // 'count' is the number of items the bulk load added (also called when it failed part way)
+    default void bulkLoadFinished(String source, int count) {
+    }
+}
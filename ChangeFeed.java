@@ -0,0 +1,330 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ChangeFeed publishes the mutations of a (writer) MediaLibrary to read replicas
+ * (see ReplicaClient) over a local TCP socket.
+ *
+ * Every add, remove, update and bulk-load bracket becomes a record with the next
+ * sequence number. The most recent records are kept in memory; a replica that
+ * connects (or reconnects) with a sequence still in that window just receives the
+ * records after it. Otherwise it first receives a snapshot of the whole catalog
+ * tagged with the sequence it reflects, streamed as a SNAPSHOT_BEGIN frame, item
+ * frames of at most SNAPSHOT_CHUNK_ITEMS items (or about SNAPSHOT_CHUNK_BYTES) and
+ * a SNAPSHOT_END frame, so no frame grows with the catalog. An idle connection gets a heartbeat
+ * every HEARTBEAT_MILLIS carrying the latest sequence, so replicas can report lag.
+ *
+ * Frame: [length int][sequence long][writer time millis long][op byte][payload]
+ *   ADD, UPDATE: MediaCodec item   REMOVE: ID (UTF)
+ *   BULK_START: source (UTF)       BULK_END: source (UTF), count (int)
+ *   SNAPSHOT_BEGIN: total count (int)   SNAPSHOT_ITEMS: count (int) then that many MediaCodec items
+ *   SNAPSHOT_END: nothing              HEARTBEAT: nothing
+ * All frames of a snapshot carry the sequence it reflects.
+ *
+ * A snapshot can already contain a change whose record follows it (the item is
+ * stored before listeners run), so replicas apply adds as upserts and ignore
+ * removes of missing IDs; replaying a change twice is harmless.
+ */
+public class ChangeFeed implements CatalogListener, Closeable {
+    static final byte OP_ADD = 1;
+    static final byte OP_REMOVE = 2;
+    static final byte OP_UPDATE = 3;
+    static final byte OP_BULK_START = 4;
+    static final byte OP_BULK_END = 5;
+    static final byte OP_SNAPSHOT_BEGIN = 6;
+    static final byte OP_HEARTBEAT = 7;
+    static final byte OP_SNAPSHOT_ITEMS = 8;
+    static final byte OP_SNAPSHOT_END = 9;
+    static final long HEARTBEAT_MILLIS = 1000;
+    static final int SNAPSHOT_CHUNK_ITEMS = 1024;
+    static final int SNAPSHOT_CHUNK_BYTES = 256 * 1024;
+    // Largest frame a replica accepts (a bigger length means a corrupt stream)
+    static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    public static final int DEFAULT_RETAINED_RECORDS = 65536;
+
+    /**
+     * One encoded change, shared by every connection that sends it
+     */
+    private static final class Record {
+        final long sequence;
+        final byte[] frame;
+
+        Record(long sequence, byte[] frame) {
+            this.sequence = sequence;
+            this.frame = frame;
+        }
+    }
+
+    private final MediaLibrary library;
+    private final int retainedRecords;
+    private final ArrayDeque<Record> recent = new ArrayDeque<>();
+    private long sequence = 0;
+    private final ServerSocket server;
+    private final ArrayList<Socket> connections = new ArrayList<>();
+    private volatile boolean closed = false;
+
+    private ChangeFeed(MediaLibrary library, int port, int retainedRecords) throws IOException {
+        this.library = library;
+        this.retainedRecords = retainedRecords;
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /*
+     * Starts publishing the library's mutations on the loopback interface.
+     * Port 0 picks a free port (see getPort).
+     */
+    public static ChangeFeed start(MediaLibrary library, int port) throws IOException {
+        return start(library, port, DEFAULT_RETAINED_RECORDS);
+    }
+
+    public static ChangeFeed start(MediaLibrary library, int port, int retainedRecords) throws IOException {
+        ChangeFeed feed = new ChangeFeed(library, port, retainedRecords);
+        library.addCatalogListener(feed);
+        Thread acceptor = new Thread(feed::accept, "change-feed-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return feed;
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    // Sequence number of the latest change
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    public synchronized int getConnectionCount() {
+        return connections.size();
+    }
+
+    @Override
+    public void mediaAdded(Media media) {
+        publish(OP_ADD, out -> MediaCodec.write(out, media));
+    }
+
+    @Override
+    public void mediaRemoved(Media media) {
+        publish(OP_REMOVE, out -> out.writeUTF(media.getId()));
+    }
+
+    @Override
+    public void mediaUpdated(Media previous, Media updated) {
+        publish(OP_UPDATE, out -> MediaCodec.write(out, updated));
+    }
+
+    @Override
+    public void bulkLoadStarted(String source) {
+        publish(OP_BULK_START, out -> out.writeUTF(source));
+    }
+
+    @Override
+    public void bulkLoadFinished(String source, int count) {
+        publish(OP_BULK_END, out -> {
+            out.writeUTF(source);
+            out.writeInt(count);
+        });
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        library.removeCatalogListener(this);
+        try {
+            server.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        synchronized (this) {
+            for (Socket socket : connections) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // The connection thread notices and exits
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    private interface Payload {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    // Encodes a change once and makes it visible to every connection
+    private void publish(byte op, Payload payload) {
+        byte[] frame;
+        synchronized (this) {
+            sequence++;
+            frame = encode(sequence, op, payload);
+            recent.addLast(new Record(sequence, frame));
+            if (recent.size() > retainedRecords) {
+                recent.removeFirst();
+            }
+            notifyAll();
+        }
+    }
+
+    static byte[] encode(long sequence, byte op, Payload payload) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0); // length, filled in below
+            out.writeLong(sequence);
+            out.writeLong(System.currentTimeMillis());
+            out.writeByte(op);
+            payload.write(out);
+            byte[] frame = bytes.toByteArray();
+            int length = frame.length - 4;
+            frame[0] = (byte) (length >>> 24);
+            frame[1] = (byte) (length >>> 16);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+            return frame;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not encode catalog change", e);
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = server.accept();
+                synchronized (this) {
+                    connections.add(socket);
+                }
+                Thread thread = new Thread(() -> serve(socket), "change-feed-" + socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    System.out.println("Change feed: accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // One replica: read the sequence it has, then stream everything after it
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             OutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024)) {
+            s.setTcpNoDelay(true);
+            long sent = in.readLong();
+            while (!closed) {
+                ArrayList<Record> batch = new ArrayList<>();
+                long resumeFrom = recordsAfter(sent, batch);
+                if (resumeFrom < 0) {
+                    sent = sendSnapshot(out);
+                    continue;
+                }
+                if (batch.isEmpty()) {
+                    out.write(encode(resumeFrom, OP_HEARTBEAT, o -> { }));
+                } else {
+                    for (Record record : batch) {
+                        out.write(record.frame);
+                    }
+                    sent = batch.get(batch.size() - 1).sequence;
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Replica went away; it reconnects with the last sequence it applied
+        } finally {
+            synchronized (this) {
+                connections.remove(socket);
+            }
+        }
+    }
+
+    /*
+     * Collects the retained records after 'sent', waiting up to a heartbeat interval
+     * for new ones. Returns the latest sequence, or -1 if records after 'sent' are no
+     * longer retained (the replica then needs a snapshot).
+     */
+    private synchronized long recordsAfter(long sent, ArrayList<Record> batch) throws IOException {
+        if (sent == sequence && !closed) {
+            try {
+                wait(HEARTBEAT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        if (sent > sequence || (sent < sequence && (recent.isEmpty() || recent.peekFirst().sequence > sent + 1))) {
+            return -1;
+        }
+        for (Record record : recent) {
+            if (record.sequence > sent) {
+                batch.add(record);
+            }
+        }
+        return sequence;
+    }
+
+    // Streams the whole catalog in chunks and returns the sequence it reflects
+    private long sendSnapshot(OutputStream out) throws IOException {
+        List<Media> items;
+        long snapshotSequence;
+        synchronized (this) {
+            snapshotSequence = sequence;
+            items = library.getAllMedia();
+        }
+        out.write(encode(snapshotSequence, OP_SNAPSHOT_BEGIN, o -> o.writeInt(items.size())));
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(SNAPSHOT_CHUNK_BYTES + 1024);
+        DataOutputStream chunkOut = new DataOutputStream(chunk);
+        int inChunk = 0;
+        for (int i = 0; i < items.size(); i++) {
+            MediaCodec.write(chunkOut, items.get(i));
+            inChunk++;
+            if (inChunk == SNAPSHOT_CHUNK_ITEMS || chunk.size() >= SNAPSHOT_CHUNK_BYTES || i == items.size() - 1) {
+                int count = inChunk;
+                out.write(encode(snapshotSequence, OP_SNAPSHOT_ITEMS, o -> {
+                    o.writeInt(count);
+                    chunk.writeTo(o);
+                }));
+                chunk.reset();
+                inChunk = 0;
+            }
+        }
+        out.write(encode(snapshotSequence, OP_SNAPSHOT_END, o -> { }));
+        out.flush();
+        return snapshotSequence;
+    }
+
+    /*
+     * Loopback demo writer: loads a catalog, publishes it and then updates a random
+     * item's rating every 'intervalMillis'.
+     * Usage: java ChangeFeed <catalogFile> <port> [intervalMillis]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java ChangeFeed <catalogFile> <port> [intervalMillis]");
+            return;
+        }
+        MediaLibrary library = new MediaLibrary();
+        ChangeFeed feed = start(library, Integer.parseInt(args[1]));
+        library.loadFromFile(args[0]);
+        long interval = args.length > 2 ? Long.parseLong(args[2]) : 100;
+        System.out.println("Publishing " + library.getAllMedia().size() + " items on port " + feed.getPort());
+        java.util.Random random = new java.util.Random();
+        while (true) {
+            Thread.sleep(interval);
+            List<Media> all = library.getAllMedia();
+            if (!all.isEmpty()) {
+                Media media = all.get(random.nextInt(all.size()));
+                ByteArrayOutputStream copy = new ByteArrayOutputStream();
+                MediaCodec.write(new DataOutputStream(copy), media);
+                Media updated = MediaCodec.read(new DataInputStream(new ByteArrayInputStream(copy.toByteArray())));
+                updated.setRating(Math.round(random.nextDouble() * 100) / 10.0);
+                library.updateMedia(updated);
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Count-Min sketch: approximate per-key counters in a fixed depth x width table.
+ * Estimates never undercount; they overcount by at most about total/width with
+ * high probability. Sketches with the same dimensions can be merged by adding
+ * their tables.
+ */
+public class CountMinSketch {
+
+    private final int depth;
+    private final int width;
+    private final long[][] table;
+    private long total = 0;
+
+    public CountMinSketch(int depth, int width) {
+        if (depth <= 0 || width <= 0) {
+            throw new IllegalArgumentException("Depth and width must be positive");
+        }
+        this.depth = depth;
+        this.width = width;
+        this.table = new long[depth][width];
+    }
+
+    // Adds 'count' occurrences of the key and returns the new estimate for it
+    public long add(String key, long count) {
+        long hash = HyperLogLog.hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int column = bucket(h1, h2, row);
+            table[row][column] += count;
+            estimate = Math.min(estimate, table[row][column]);
+        }
+        total += count;
+        return estimate;
+    }
+
+    public long estimate(String key) {
+        long hash = HyperLogLog.hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, table[row][bucket(h1, h2, row)]);
+        }
+        return estimate;
+    }
+
+    public void merge(CountMinSketch other) {
+        if (other.depth != depth || other.width != width) {
+            throw new IllegalArgumentException("Cannot merge Count-Min sketches with different dimensions");
+        }
+        for (int row = 0; row < depth; row++) {
+            for (int column = 0; column < width; column++) {
+                table[row][column] += other.table[row][column];
+            }
+        }
+        total += other.total;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    // Derives one column per row from two hash halves (Kirsch-Mitzenmacher)
+    private int bucket(int h1, int h2, int row) {
+        int combined = h1 + row * h2;
+        return (combined & Integer.MAX_VALUE) % width;
+    }
+}
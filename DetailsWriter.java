@@ -0,0 +1,48 @@
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * DetailsWriter renders media details into one reusable StringBuilder and copies
+ * them to a Writer through a reusable char buffer, so bulk output (displayAll,
+ * exports) does not build a new String per item.
+ */
+public class DetailsWriter {
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final Writer out;
+    private final StringBuilder buffer = new StringBuilder(256);
+    private char[] chars = new char[256];
+
+    public DetailsWriter(Writer out) {
+        this.out = out;
+    }
+
+    // Writes "<details>" followed by a line separator
+    public void writeDetails(Media media) throws IOException {
+        buffer.setLength(0);
+        media.appendDetails(buffer);
+        writeBufferLine();
+    }
+
+    // Writes "<number>. <details>" followed by a line separator
+    public void writeNumberedDetails(int number, Media media) throws IOException {
+        buffer.setLength(0);
+        buffer.append(number).append(". ");
+        media.appendDetails(buffer);
+        writeBufferLine();
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    private void writeBufferLine() throws IOException {
+        buffer.append(LINE_SEPARATOR);
+        int length = buffer.length();
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        buffer.getChars(0, length, chars, 0);
+        out.write(chars, 0, length);
+    }
+}
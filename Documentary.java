@@ -6,23 +6,56 @@ Documentary class that extends the Media Class and Implements the Playable inter
 
 public class Documentary extends Media implements Playable {
     private String subject;
+    // Undecoded subject (lazy-record mode); cleared once subject has been read.
+    // Volatile: a reader that sees it cleared also sees the decoded subject.
+    private volatile LazyText lazySubject;
     // constructor
     public Documentary(String id, String title, String genre, double rating, int duration, String subject) {
         super(id, title, genre, rating, duration);
         this.subject = subject;
     }
+    // constructor for lazy-record mode: the subject is decoded on first access
+    public Documentary(String id, String title, String genre, double rating, int duration, LazyText subject) {
+        super(id, title, genre, rating, duration);
+        this.lazySubject = subject;
+    }
 
     public String getSubject() {
+        LazyText lazy = lazySubject;
+        if (lazy != null) {
+            subject = lazy.get();
+            lazySubject = null;
+        }
         return subject;
     }
+    // The subject string, or the handle to it while it is still lazy
+    @Override
+    long estimateDetailBytes() {
+        return MemoryEstimator.string(subject)
+                + (lazySubject != null ? MemoryEstimator.shallowSize(LazyText.class) : 0);
+    }
+    @Override
+    long detailHash() {
+        LazyText lazy = lazySubject;
+        return lazy != null ? lazy.getTextHash() : detailHashOf(subject);
+    }
 // setter
     public void setSubject(String subject) {
         this.subject = subject;
+        this.lazySubject = null;
     }
-    // Implementing the abstract method of Media class and as well calling the toString method of super class(Media) and appending the new attribute to it.
+    // Implementing the abstract method of Media class by reusing the summary of the super class(Media) and appending the new attribute to it.
     @Override
     public String getDisplayDetails() {
-        return super.toString() + ", Subject: " + subject;
+        StringBuilder out = new StringBuilder(96);
+        appendDetails(out);
+        return out.toString();
+    }
+    // Same text as getDisplayDetails, written straight into the caller's buffer
+    @Override
+    public void appendDetails(StringBuilder out) {
+        appendSummary(out);
+        out.append(", Subject: ").append(getSubject());
     }
     // Implementing method of Playable interface as well print respective title.
     @Override
@@ -0,0 +1,23 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder event emitted around the instrumented hot paths
+ * (library loading and search, recommendation generation, user persistence).
+ * Enable it in a recording with: -XX:StartFlightRecording ... or jcmd JFR.start
+ */
+@Name("aduflix.HotPath")
+@Label("ADUflix Hot Path")
+@Category("ADUflix")
+@Description("Duration of an instrumented library, recommendation or user operation")
+class HotPathEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Items")
+    @Description("Number of items produced or processed by the operation")
+    int items;
+}
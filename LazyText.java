@@ -0,0 +1,133 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LazyText is a text field that has not been decoded yet: it only remembers
+ * where its UTF-8 bytes are in a source file (offset and length).
+ * The bytes are read and decoded the first time get() is called.
+ *
+ * Used by MediaLibrary's lazy-record mode for wide detail fields such as
+ * Movie directors and Documentary subjects.
+ */
+public class LazyText {
+
+    /**
+     * A file that lazy fields point into. The channel is opened on first use and
+     * shared by all fields of the same load; positional reads are thread-safe.
+     * It is closed again once every field created for it has been decoded, or by
+     * close(); a read after that reopens it.
+     */
+    public static class Source implements Closeable {
+        private final String filename;
+        private volatile FileChannel channel;
+        // Fields created for this file that have not been decoded yet
+        private final AtomicLong undecoded = new AtomicLong();
+
+        public Source(String filename) {
+            this.filename = filename;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        String read(long offset, int length) {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            try {
+                for (int attempt = 0; buffer.hasRemaining(); ) {
+                    FileChannel in = channel();
+                    try {
+                        if (in.read(buffer, offset + buffer.position()) < 0) {
+                            throw new IOException("Unexpected end of file");
+                        }
+                    } catch (ClosedChannelException e) {
+                        // Closed by another thread after the last field was decoded: reopen once
+                        if (attempt++ > 0) {
+                            throw e;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read detail field from '" + filename + "'", e);
+            }
+            return new String(buffer.array(), StandardCharsets.UTF_8);
+        }
+
+        void fieldCreated() {
+            undecoded.incrementAndGet();
+        }
+
+        void fieldDecoded() {
+            if (undecoded.decrementAndGet() == 0) {
+                try {
+                    close();
+                } catch (IOException e) {
+                    // Only reads went through the channel; nothing is lost
+                }
+            }
+        }
+
+        private synchronized FileChannel channel() throws IOException {
+            if (channel == null || !channel.isOpen()) {
+                channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+            }
+            return channel;
+        }
+
+        // Closes the file; later reads reopen it
+        @Override
+        public synchronized void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    private final Source source;
+    private final long offset;
+    private final int length;
+    // Media.detailHashOf the text, taken by the parser while the bytes were at hand
+    private final long textHash;
+
+    public LazyText(Source source, long offset, int length, long textHash) {
+        this.source = source;
+        this.offset = offset;
+        this.length = length;
+        this.textHash = textHash;
+        source.fieldCreated();
+    }
+
+    // Reads and decodes the text; callers cache the result and drop this handle
+    public String get() {
+        String text = length == 0 ? "" : source.read(offset, length);
+        source.fieldDecoded();
+        return text;
+    }
+
+    // Whether both handles point at the same bytes (and so decode to the same text)
+    public boolean sameText(LazyText other) {
+        return source == other.source && offset == other.offset && length == other.length;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    // Hash of the text without decoding it (see Media.detailHash)
+    public long getTextHash() {
+        return textHash;
+    }
+}
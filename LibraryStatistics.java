@@ -0,0 +1,123 @@
+import java.util.*;
+
+/**
+ * LibraryStatistics keeps running counts about the catalog and about watch activity.
+ *
+ * MediaLibrary updates it on every add/remove and it receives watch events as a
+ * WatchListener, so the numbers are always current and reading them never
+ * requires a scan of the library.
+ */
+public class LibraryStatistics implements WatchListener {
+
+    // Rating histogram: one bucket per whole rating point (0-1, 1-2, ..., 9-10, 10)
+    public static final int RATING_BUCKETS = 11;
+    // Duration histogram: 30 minute buckets, the last one collects everything longer
+    public static final int DURATION_BUCKET_MINUTES = 30;
+    public static final int DURATION_BUCKETS = 9;
+
+    private long totalItems = 0;
+    private long totalWatches = 0;
+    private final HashMap<String, Long> countsByType = new HashMap<>();
+    private final HashMap<String, Long> countsByGenre = new HashMap<>();
+    private final long[] ratingHistogram = new long[RATING_BUCKETS];
+    private final long[] durationHistogram = new long[DURATION_BUCKETS];
+    private final HashMap<String, Long> watchesById = new HashMap<>();
+
+    // Estimated bytes of the counters; the per-item watch counts dominate
+    public synchronized long estimateMemory() {
+        long boxedLong = MemoryEstimator.shallowSize(Long.class);
+        return MemoryEstimator.hashMap(countsByType) + MemoryEstimator.hashMap(countsByGenre)
+                + (countsByType.size() + countsByGenre.size()) * boxedLong
+                + MemoryEstimator.hashMap(watchesById) + watchesById.size() * boxedLong
+                + MemoryEstimator.primitiveArray(RATING_BUCKETS, 8) + MemoryEstimator.primitiveArray(DURATION_BUCKETS, 8);
+    }
+
+    // Called by MediaLibrary when an item is added
+    public synchronized void mediaAdded(Media media) {
+        update(media, 1);
+    }
+
+    // Called by MediaLibrary when an item is removed
+    public synchronized void mediaRemoved(Media media) {
+        update(media, -1);
+    }
+
+    // Called by MediaLibrary.addBatch: added.get(i) replaced replaced.get(i) (null for a new item)
+    public synchronized void batchAdded(List<Media> added, List<Media> replaced) {
+        for (int i = 0; i < added.size(); i++) {
+            if (replaced.get(i) != null) {
+                update(replaced.get(i), -1);
+            }
+            update(added.get(i), 1);
+        }
+    }
+
+    @Override
+    public synchronized void mediaWatched(User user, Media media, long timestamp) {
+        totalWatches++;
+        watchesById.merge(media.getId(), 1L, Long::sum);
+    }
+
+    private void update(Media media, int delta) {
+        totalItems += delta;
+        adjust(countsByType, media.getClass().getSimpleName(), delta);
+        adjust(countsByGenre, media.getGenre(), delta);
+        ratingHistogram[ratingBucket(media.getRating())] += delta;
+        durationHistogram[durationBucket(media.getDuration())] += delta;
+    }
+
+    // Adds delta to a counter and drops the key when it reaches zero
+    private static void adjust(HashMap<String, Long> counts, String key, long delta) {
+        long value = counts.getOrDefault(key, 0L) + delta;
+        if (value <= 0) {
+            counts.remove(key);
+        } else {
+            counts.put(key, value);
+        }
+    }
+
+    public static int ratingBucket(double rating) {
+        return Math.min(RATING_BUCKETS - 1, Math.max(0, (int) rating));
+    }
+
+    public static int durationBucket(int duration) {
+        return Math.min(DURATION_BUCKETS - 1, Math.max(0, duration / DURATION_BUCKET_MINUTES));
+    }
+
+    public synchronized long getTotalItems() {
+        return totalItems;
+    }
+
+    public synchronized long getTotalWatches() {
+        return totalWatches;
+    }
+
+    public synchronized long getCountForType(String type) {
+        return countsByType.getOrDefault(type, 0L);
+    }
+
+    public synchronized long getCountForGenre(String genre) {
+        return countsByGenre.getOrDefault(genre, 0L);
+    }
+
+    public synchronized long getWatchCount(Media media) {
+        return watchesById.getOrDefault(media.getId(), 0L);
+    }
+
+    // Copies of the small maps/arrays, safe to iterate while updates continue
+    public synchronized Map<String, Long> getCountsByType() {
+        return new TreeMap<>(countsByType);
+    }
+
+    public synchronized Map<String, Long> getCountsByGenre() {
+        return new TreeMap<>(countsByGenre);
+    }
+
+    public synchronized long[] getRatingHistogram() {
+        return ratingHistogram.clone();
+    }
+
+    public synchronized long[] getDurationHistogram() {
+        return durationHistogram.clone();
+    }
+}
@@ -0,0 +1,117 @@
+import java.util.ArrayList;
+
+/**
+ * Summary of a lenient load: how many lines were read, loaded and rejected.
+ * The first MAX_KEPT_REJECTIONS rejections are kept in memory for display;
+ * the reject file (if one was requested) holds all of them.
+ */
+public class LoadReport {
+    public static final int MAX_KEPT_REJECTIONS = 100;
+
+    /**
+     * One rejected line: its line number, the original text and the reason
+     */
+    public static class Rejection {
+        private final int lineNumber;
+        private final String line;
+        private final String reason;
+
+        Rejection(int lineNumber, String line, String reason) {
+            this.lineNumber = lineNumber;
+            this.line = line;
+            this.reason = reason;
+        }
+
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        public String getLine() {
+            return line;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return reason;
+        }
+    }
+
+    private final String filename;
+    private int linesRead = 0;
+    private int loaded = 0;
+    private int rejected = 0;
+    private final ArrayList<Rejection> rejections = new ArrayList<>();
+    // Set when the file itself could not be read
+    private String failure;
+
+    public LoadReport(String filename) {
+        this.filename = filename;
+    }
+
+    void recordLoaded() {
+        linesRead++;
+        loaded++;
+    }
+
+    void recordRejected(int lineNumber, String line, String reason) {
+        linesRead++;
+        rejected++;
+        if (rejections.size() < MAX_KEPT_REJECTIONS) {
+            rejections.add(new Rejection(lineNumber, line, reason));
+        }
+    }
+
+    void recordFailure(String reason) {
+        failure = reason;
+    }
+
+    // The file failed and its parsed items were dropped: they stay counted as read, not as loaded
+    void discardLoaded() {
+        loaded = 0;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public int getLinesRead() {
+        return linesRead;
+    }
+
+    public int getLoaded() {
+        return loaded;
+    }
+
+    public int getRejected() {
+        return rejected;
+    }
+
+    public boolean hasRejections() {
+        return rejected > 0;
+    }
+
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    // Why the file could not be read, or null if it was read
+    public String getFailure() {
+        return failure;
+    }
+
+    // The first rejections (at most MAX_KEPT_REJECTIONS)
+    public ArrayList<Rejection> getRejections() {
+        return new ArrayList<>(rejections);
+    }
+
+    @Override
+    public String toString() {
+        return "LoadReport [File: " + filename + ", Lines: " + linesRead +
+               ", Loaded: " + loaded + ", Rejected: " + rejected +
+               (failure != null ? ", Failed: " + failure : "") + "]";
+    }
+}
@@ -0,0 +1,120 @@
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LoadTestHarness replays a mix of search, watch and recommend operations from
+ * several threads against a MediaLibrary loaded from a (generated) catalog and
+ * reports throughput plus p50/p99/p999 latency per operation.
+ *
+ * The users (loaduser1 .. loaduser<users>) and their watch histories are read from
+ * the userdata files WorkloadGenerator wrote next to the catalog.
+ *
+ * Usage: java LoadTestHarness <catalogFile> <threads> <seconds> [search% watch% recommend%] [users]
+ * Example: java WorkloadGenerator load 1000000 1000 50
+ *          java LoadTestHarness load/catalog.txt 8 30 60 30 10
+ */
+public class LoadTestHarness {
+
+    private static final String[] OPERATIONS = {"search", "watch", "recommend"};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: java LoadTestHarness <catalogFile> <threads> <seconds> [search% watch% recommend%] [users]");
+            return;
+        }
+        String catalog = args[0];
+        int threads = Integer.parseInt(args[1]);
+        int seconds = Integer.parseInt(args[2]);
+        int[] mix = {60, 30, 10};
+        if (args.length >= 6) {
+            mix = new int[] {Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5])};
+        }
+        int userCount = args.length >= 7 ? Integer.parseInt(args[6]) : 1000;
+
+        MediaLibrary library = new MediaLibrary();
+        long loadStart = System.nanoTime();
+        library.loadFromFile(catalog);
+        System.out.println("Loaded " + library.getAllMedia().size() + " items in "
+                + (System.nanoTime() - loadStart) / 1_000_000 + " ms");
+        User.addWatchListener(library.getStatistics());
+
+        File dataDir = new File(catalog).getAbsoluteFile().getParentFile();
+        ArrayList<User> users = new ArrayList<>();
+        for (int i = 1; i <= userCount; i++) {
+            User user = User.loadUserData(dataDir, "loaduser" + i);
+            if (user != null) {
+                users.add(user);
+            }
+        }
+        if (users.isEmpty()) {
+            System.out.println("No generated users found in " + dataDir + "; run WorkloadGenerator first");
+            return;
+        }
+        System.out.println("Loaded " + users.size() + " users from " + dataDir);
+        new LoadTestHarness(library, users, mix).run(threads, seconds);
+    }
+
+    private final MediaLibrary library;
+    private final ArrayList<User> users;
+    private final int[] mix;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+    private final AtomicLong errors = new AtomicLong();
+
+    public LoadTestHarness(MediaLibrary library, ArrayList<User> users, int[] mix) {
+        this.library = library;
+        this.users = users;
+        this.mix = mix;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    // Runs the workload on 'threads' threads for 'seconds' seconds and prints a report
+    public void run(int threads, int seconds) throws InterruptedException {
+        int totalWeight = mix[0] + mix[1] + mix[2];
+        List<Media> items = library.getAllMedia();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    int pick = random.nextInt(totalWeight);
+                    int operation = pick < mix[0] ? 0 : pick < mix[0] + mix[1] ? 1 : 2;
+                    User user = users.get(random.nextInt(users.size()));
+                    long begin = System.nanoTime();
+                    try {
+                        switch (operation) {
+                            case 0:
+                                library.searchByTitle(WorkloadGenerator.TITLE_WORDS[random.nextInt(WorkloadGenerator.TITLE_WORDS.length)]);
+                                break;
+                            case 1:
+                                user.watchMedia(items.get(random.nextInt(items.size())));
+                                break;
+                            default:
+                                RecommendationEngine.generateRecommendations(user, library, 5.0, 150);
+                        }
+                    } catch (RuntimeException e) {
+                        errors.incrementAndGet();
+                    }
+                    latencies[operation].record(System.nanoTime() - begin);
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(seconds + 60L, TimeUnit.SECONDS);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("Threads: " + threads + ", Duration: " + String.format("%.1f", elapsed) + " s, Errors: " + errors.get());
+        long total = 0;
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            LatencyHistogram.Summary summary = latencies[i].summary();
+            total += summary.getCount();
+            System.out.println(String.format("%-10s %10.0f ops/s  %s", OPERATIONS[i], summary.getCount() / elapsed, summary));
+        }
+        System.out.println(String.format("%-10s %10.0f ops/s", "total", total / elapsed));
+    }
+}
@@ -2,6 +2,7 @@
 // Abstract base class representing any media item (movies, series,)
 //Defines common properties and behaviors for all media types
 
+import java.util.Locale;
 import java.util.Objects;
 
 public abstract class Media implements Comparable<Media> {
@@ -15,12 +16,15 @@ public abstract class Media implements Comparable<Media> {
     private String genre;
     private double rating;
     private int duration; 
+    // Normalized title/genre for searching (see SearchKey), kept in step by the setters
+    private byte[] titleKey;
+    private byte[] genreKey;
     
     public Media(String id, String title, String genre, double rating, int duration) {
 
         this.id = id;
-        this.title = title;
-        this.genre = genre;
+        setTitle(title);
+        setGenre(genre);
         setRating(rating);  
         this.duration = duration;
     }
@@ -33,6 +37,25 @@ public abstract class Media implements Comparable<Media> {
     //Abstract method that must be implemented in child classes.
      
     public abstract String getDisplayDetails();
+
+    // Writes the same text as getDisplayDetails() into the given buffer without
+    // creating intermediate Strings (used for bulk output, see DetailsWriter)
+    public abstract void appendDetails(StringBuilder out);
+
+    // Estimated heap used by subclass-specific fields (for MemoryEstimator); must not load lazy fields
+    long estimateDetailBytes() {
+        return 0;
+    }
+
+    // Hash of the detail text (director, subject) for SimilarityIndex features, 0 without one;
+    // must not load lazy fields (they carry the hash taken when the line was parsed)
+    long detailHash() {
+        return 0;
+    }
+
+    static long detailHashOf(String text) {
+        return text == null || text.isEmpty() ? 0 : HyperLogLog.hash64(text.toLowerCase(Locale.ROOT));
+    }
     
     public String getId() { 
         return id; 
@@ -56,12 +79,23 @@ public abstract class Media implements Comparable<Media> {
     
     public void setTitle(String title) {
          this.title = title; 
+         this.titleKey = title == null ? new byte[0] : SearchKey.of(title);
         }
 
     public void setGenre(String genre) {
          this.genre = genre; 
+         this.genreKey = genre == null ? new byte[0] : SearchKey.shared(genre);
         }
 
+    // Search keys of the title and genre; shared arrays, never modify them
+    byte[] getTitleKey() {
+        return titleKey;
+    }
+
+    byte[] getGenreKey() {
+        return genreKey;
+    }
+
     public void setDuration(int duration) {
          this.duration = duration; 
         }
@@ -80,10 +114,17 @@ public abstract class Media implements Comparable<Media> {
      
     @Override
     public String toString() {
-    return title + " [ID: " + id + ", Genre: " + genre + 
-           ", Rating: " + String.format("%.1f", rating) + 
-           ", Duration: " + duration + " min]";
+        StringBuilder out = new StringBuilder(96);
+        appendSummary(out);
+        return out.toString();
+    }
 
+    // Writes the toString() summary into the given buffer
+    public void appendSummary(StringBuilder out) {
+        out.append(title).append(" [ID: ").append(id).append(", Genre: ").append(genre)
+           .append(", Rating: ");
+        RatingFormat.appendOneDecimal(out, rating)
+           .append(", Duration: ").append(duration).append(" min]");
     }
 
 
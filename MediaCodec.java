@@ -0,0 +1,66 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Binary encoding of a single media item, shared by the catalog journal
+ * (write-ahead log and checkpoints) and anything else that stores media in binary.
+ *
+ * Layout: type byte, ID, title, genre (modified UTF-8), rating (double),
+ * duration (int), then seasons (int) for Series or subject/director (UTF) otherwise.
+ */
+public final class MediaCodec {
+    private static final byte SERIES = 1;
+    private static final byte DOCUMENTARY = 2;
+    private static final byte MOVIE = 3;
+
+    private MediaCodec() {
+    }
+
+    public static void write(DataOutput out, Media media) throws IOException {
+        if (media instanceof Series) {
+            out.writeByte(SERIES);
+        } else if (media instanceof Documentary) {
+            out.writeByte(DOCUMENTARY);
+        } else if (media instanceof Movie) {
+            out.writeByte(MOVIE);
+        } else {
+            throw new IOException("Unsupported media type: " + media.getClass().getName());
+        }
+        out.writeUTF(media.getId());
+        out.writeUTF(media.getTitle());
+        out.writeUTF(media.getGenre());
+        out.writeDouble(media.getRating());
+        out.writeInt(media.getDuration());
+        if (media instanceof Series) {
+            out.writeInt(((Series) media).getNumberOfSeasons());
+        } else if (media instanceof Documentary) {
+            out.writeUTF(((Documentary) media).getSubject());
+        } else {
+            out.writeUTF(((Movie) media).getAuthor());
+        }
+    }
+
+    public static Media read(DataInput in) throws IOException {
+        byte type = in.readByte();
+        String id = in.readUTF();
+        String title = in.readUTF();
+        String genre = in.readUTF();
+        double rating = in.readDouble();
+        int duration = in.readInt();
+        try {
+            switch (type) {
+                case SERIES:
+                    return new Series(id, title, genre, rating, duration, in.readInt());
+                case DOCUMENTARY:
+                    return new Documentary(id, title, genre, rating, duration, in.readUTF());
+                case MOVIE:
+                    return new Movie(id, title, genre, rating, duration, in.readUTF());
+                default:
+                    throw new IOException("Unknown media type code " + type);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid media record for ID " + id + ": " + e.getMessage(), e);
+        }
+    }
+}
@@ -1,18 +1,242 @@
 import java.io.*; // for file output and input (BufferedReader, FileReader)
 import java.util.*; // for arraylist , list , and collection
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 // MediaLibrary: the core class for managing a collection of Media objects (Series, Documentaries)
 public class MediaLibrary {
-    //  this ArrayList to store all media items (polymorphic: can hold Series, Documentary)
-    private ArrayList<Media> mediaList = new ArrayList<>();
+    //  stores all media items (polymorphic: can hold Series, Documentary); removals leave tombstones
+    private final MediaSlots mediaList = new MediaSlots();
+    // running counts kept up to date on every add/remove
+    private final LibraryStatistics statistics = new LibraryStatistics();
+    // Stable ordinals: every media ID gets a small int the first time it is added.
+    // Ordinals are never reused, so arrays indexed by ordinal stay valid.
+    private final HashMap<String, Integer> ordinalsById = new HashMap<>();
+    private final ArrayList<Media> mediaByOrdinal = new ArrayList<>();
+    // ordinalFingerprints[i]: hash of the IDs of ordinals 0..i, so files that store
+    // ordinals (UserHistoryCodec) can check that they mean the same items here
+    private long[] ordinalFingerprints = new long[16];
+    // Sorted views by title, rating, duration and type, maintained on add/remove
+    private final SortedMediaViews sortedViews = new SortedMediaViews();
+    // (duration, rating) index for filtered top-rated queries, rebuilt in the background after changes
+    private volatile DurationRatingIndex durationRatingIndex;
+    private final AtomicBoolean indexRebuildQueued = new AtomicBoolean(false);
+    // Optional off-heap search index (see setOffHeapSearch), rebuilt together with the rating index
+    private volatile boolean offHeapSearch = false;
+    private volatile SearchIndex searchIndex;
+    // The index is rebuilt once the catalog has not changed for this long (a bulk load or a
+    // stream of edits causes one rebuild at the end, not one per change)
+    private static final long INDEX_REBUILD_DELAY_MILLIS = 200;
+    // One daemon thread rebuilds the indexes of every library, off the request path
+    private static final ScheduledExecutorService INDEX_BUILDER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rating-index-build");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Notified before and after every add/remove (journal, caches, replicas, ...)
+    private final ArrayList<CatalogListener> catalogListeners = new ArrayList<>();
+    // Lines validated together by loadFromFileLenient
+    private static final int LENIENT_BATCH_SIZE = 16384;
 
     // method to add the media items to mediaList
     public void addMedia(Media media) {
+        for (CatalogListener listener : catalogListeners) {
+            listener.mediaAdding(media);
+        }
         mediaList.add(media);
+        statistics.mediaAdded(media);
+        sortedViews.add(media);
+        Integer ordinal = ordinalsById.get(media.getId());
+        if (ordinal == null) {
+            assignOrdinal(media);
+        } else {
+            mediaByOrdinal.set(ordinal, media);
+        }
+        for (CatalogListener listener : catalogListeners) {
+            listener.mediaAdded(media);
+        }
+    }
+
+    // Gives a new ID the next ordinal
+    private void assignOrdinal(Media media) {
+        int next = mediaByOrdinal.size();
+        ordinalsById.put(media.getId(), next);
+        mediaByOrdinal.add(media);
+        if (next == ordinalFingerprints.length) {
+            ordinalFingerprints = Arrays.copyOf(ordinalFingerprints, next * 2);
+        }
+        long previous = next == 0 ? 0 : ordinalFingerprints[next - 1];
+        ordinalFingerprints[next] = previous * 0x9E3779B97F4A7C15L + HyperLogLog.hash64(media.getId());
     }
     // method to remove the media items from mediaList
     public void removeMedia(Media media) {
-        mediaList.remove(media);
+        if (!mediaList.contains(media)) {
+            return;
+        }
+        for (CatalogListener listener : catalogListeners) {
+            listener.mediaRemoving(media);
+        }
+        if (mediaList.remove(media)) {
+            statistics.mediaRemoved(media);
+            sortedViews.remove(media);
+            Integer ordinal = ordinalsById.get(media.getId());
+            if (ordinal != null && media.equals(mediaByOrdinal.get(ordinal))) {
+                mediaByOrdinal.set(ordinal, null);
+            }
+            for (CatalogListener listener : catalogListeners) {
+                listener.mediaRemoved(media);
+            }
+        }
+    }
+
+    /*
+     * Adds many items at once (used by CatalogIngestor). An item whose ID is already
+     * in the library (or earlier in the batch) replaces the existing one when
+     * replaceExisting is true and is skipped otherwise. Returns how many items were
+     * replaced or skipped.
+     * The whole batch is resolved first and then published in one step, so readers
+     * never see half of it; listeners get one batchAdding/batchAdded pair and the
+     * sorted views merge the whole batch in one pass.
+     */
+    public int addBatch(Collection<Media> batch, boolean replaceExisting) {
+        Metrics.Span span = Metrics.begin("library.addBatch");
+        ArrayList<Media> added = new ArrayList<>(batch.size());
+        ArrayList<Media> replaced = new ArrayList<>(batch.size());
+        HashMap<String, Integer> positions = new HashMap<>();
+        int clashes = 0;
+        for (Media media : batch) {
+            Integer position = positions.get(media.getId());
+            Media existing = position == null ? getById(media.getId()) : added.get(position);
+            if (existing != null) {
+                clashes++;
+                if (!replaceExisting) {
+                    continue;
+                }
+            }
+            if (position != null) {
+                added.set(position, media);   // still replaces what was there before the batch
+            } else {
+                positions.put(media.getId(), added.size());
+                added.add(media);
+                replaced.add(existing);
+            }
+        }
+        int before = mediaList.size();
+        fireBulkLoadStarted("batch");
+        try {
+            for (CatalogListener listener : catalogListeners) {
+                listener.batchAdding(added, replaced);
+            }
+            mediaList.addAll(added, replaced);
+            statistics.batchAdded(added, replaced);
+            for (int i = 0; i < added.size(); i++) {
+                Media media = added.get(i);
+                if (replaced.get(i) != null) {
+                    sortedViews.remove(replaced.get(i));
+                }
+                sortedViews.add(media);
+                Integer ordinal = ordinalsById.get(media.getId());
+                if (ordinal == null) {
+                    assignOrdinal(media);
+                } else {
+                    mediaByOrdinal.set(ordinal, media);
+                }
+            }
+            for (CatalogListener listener : catalogListeners) {
+                listener.batchAdded(added, replaced);
+            }
+        } finally {
+            fireBulkLoadFinished("batch", mediaList.size() - before);
+            span.end(batch.size());
+        }
+        return clashes;
+    }
+
+    /*
+     * Replaces the item that has the same ID as 'media' (for example after a rating
+     * correction) in place: the new item keeps the old one's position in library
+     * order. Listeners get a single mediaUpdated call. Returns false, and changes
+     * nothing, if no item has that ID.
+     */
+    public boolean updateMedia(Media media) {
+        Integer ordinal = ordinalsById.get(media.getId());
+        Media previous = ordinal == null ? null : mediaByOrdinal.get(ordinal);
+        if (previous == null || !mediaList.contains(previous)) {
+            return false;
+        }
+        for (CatalogListener listener : catalogListeners) {
+            listener.mediaUpdating(previous, media);
+        }
+        mediaList.replace(previous, media);
+        statistics.mediaRemoved(previous);
+        statistics.mediaAdded(media);
+        sortedViews.remove(previous);
+        sortedViews.add(media);
+        mediaByOrdinal.set(ordinal, media);
+        for (CatalogListener listener : catalogListeners) {
+            listener.mediaUpdated(previous, media);
+        }
+        return true;
+    }
+
+    private void fireBulkLoadStarted(String source) {
+        for (CatalogListener listener : catalogListeners) {
+            listener.bulkLoadStarted(source);
+        }
+    }
+
+    private void fireBulkLoadFinished(String source, int count) {
+        for (CatalogListener listener : catalogListeners) {
+            listener.bulkLoadFinished(source, count);
+        }
+    }
+
+    // Registers a listener that is told about every later add/remove
+    public void addCatalogListener(CatalogListener listener) {
+        catalogListeners.add(listener);
+    }
+
+    public void removeCatalogListener(CatalogListener listener) {
+        catalogListeners.remove(listener);
+    }
+
+    // Returns the ordinal of the media item's ID, or -1 if it was never added
+    public int getOrdinal(Media media) {
+        Integer ordinal = ordinalsById.get(media.getId());
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    // Returns the item currently stored under an ordinal, or null if it was removed
+    public Media getByOrdinal(int ordinal) {
+        if (ordinal < 0 || ordinal >= mediaByOrdinal.size()) {
+            return null;
+        }
+        return mediaByOrdinal.get(ordinal);
+    }
+
+    // Fingerprint of the IDs behind the first 'count' ordinals (0 for none)
+    public long getOrdinalFingerprint(int count) {
+        if (count < 0 || count > mediaByOrdinal.size()) {
+            throw new IndexOutOfBoundsException("Only " + mediaByOrdinal.size() + " ordinals exist");
+        }
+        return count == 0 ? 0 : ordinalFingerprints[count - 1];
+    }
+
+    // Returns the item with the given ID, or null if there is none
+    public Media getById(String id) {
+        Integer ordinal = ordinalsById.get(id);
+        return ordinal == null ? null : mediaByOrdinal.get(ordinal);
+    }
+
+    // Number of ordinals handed out so far (removed items keep theirs)
+    public int getOrdinalCount() {
+        return mediaByOrdinal.size();
     }
 
     /*
@@ -24,126 +248,757 @@ public class MediaLibrary {
      * identifies the media type, and constructs the corresponding object.
      */
     public void loadFromFile(String filename) throws InvalidMediaDataException {
+        Metrics.Span span = Metrics.begin("library.loadFromFile");
+        int before = mediaList.size();
+        fireBulkLoadStarted(filename);
+        try {
+            // One parallel rebuild of the sorted views afterwards beats one insert per line
+            sortedViews.invalidate();
+            readMediaFile(filename, this::addMedia);
+        } finally {
+            sortedViews.rebuild(mediaList.snapshot());
+            fireBulkLoadFinished(filename, mediaList.size() - before);
+            span.end(mediaList.size() - before);
+        }
+    }
+
+    /*
+     * Lazy-record mode: same as loadFromFile, but Movie directors and Documentary
+     * subjects are not decoded. Each item only keeps the byte offset of its detail
+     * field in the file and decodes it the first time a getter needs it.
+     * The file must stay in place (unchanged) while the library uses it.
+     */
+    public void loadFromFile(String filename, boolean lazyDetails) throws InvalidMediaDataException {
+        Metrics.Span span = Metrics.begin("library.loadFromFile");
+        int before = mediaList.size();
+        fireBulkLoadStarted(filename);
+        try {
+            sortedViews.invalidate();
+            if (lazyDetails) {
+                readMediaFileLazily(filename, this::addMedia);
+            } else {
+                readMediaFile(filename, this::addMedia);
+            }
+        } finally {
+            sortedViews.rebuild(mediaList.snapshot());
+            fireBulkLoadFinished(filename, mediaList.size() - before);
+            span.end(mediaList.size() - before);
+        }
+    }
+
+    /*
+     * Lenient load: bad lines are skipped instead of aborting the whole load.
+     * Lines are validated in parallel in batches and the good ones are added in
+     * file order. Every rejected line is written to rejectFilename (if not null) as
+     *   lineNumber<TAB>reason<TAB>original line
+     * so it can be fixed and loaded on its own (the reason without its "Line N:"
+     * prefix). Only failing to read the input or to write the reject file throws,
+     * each with its own message; the strict loadFromFile stays the default.
+     */
+    public LoadReport loadFromFileLenient(String filename, String rejectFilename) throws InvalidMediaDataException {
+        Metrics.Span span = Metrics.begin("library.loadFromFileLenient");
+        int before = mediaList.size();
+        fireBulkLoadStarted(filename);
+        try {
+            return readLenient(filename, rejectFilename);
+        } finally {
+            sortedViews.rebuild(mediaList.snapshot());
+            fireBulkLoadFinished(filename, mediaList.size() - before);
+            span.end(mediaList.size() - before);
+        }
+    }
+
+    private LoadReport readLenient(String filename, String rejectFilename) throws InvalidMediaDataException {
+        LoadReport report = new LoadReport(filename);
+        sortedViews.invalidate();
+        // Open the input first, so a missing input does not truncate an existing reject file
+        BufferedReader input;
+        try {
+            input = new BufferedReader(new FileReader(filename));
+        } catch (IOException e) {
+            throw new InvalidMediaDataException("Error reading file '" + filename + "': " + e.getMessage(), e);
+        }
+        PrintWriter rejectWriter = null;
+        if (rejectFilename != null) {
+            try {
+                rejectWriter = new PrintWriter(new BufferedWriter(new FileWriter(rejectFilename)));
+            } catch (IOException e) {
+                try {
+                    input.close();
+                } catch (IOException ignored) {
+                    // Only read from; nothing to lose
+                }
+                throw new InvalidMediaDataException("Error writing reject file '" + rejectFilename + "': " + e.getMessage(), e);
+            }
+        }
+        try (BufferedReader reader = input;
+             PrintWriter rejects = rejectWriter) {
+            String[] lines = new String[LENIENT_BATCH_SIZE];
+            Media[] parsed = new Media[LENIENT_BATCH_SIZE];
+            String[] errors = new String[LENIENT_BATCH_SIZE];
+            int firstLineNumber = 1;
+            int count;
+            do {
+                count = 0;
+                String line;
+                while (count < LENIENT_BATCH_SIZE && (line = reader.readLine()) != null) {
+                    lines[count++] = line;
+                }
+                
+                // Validate the batch in parallel; each index is written by one task only
+                final int base = firstLineNumber;
+                IntStream.range(0, count).parallel().forEach(i -> {
+                    try {
+                        parsed[i] = parseTokens(lines[i].split(","), base + i, null);
+                        errors[i] = null;
+                    } catch (InvalidMediaDataException e) {
+                        parsed[i] = null;
+                        errors[i] = e.getMessage();
+                    }
+                });
+                
+                // Publish in file order
+                for (int i = 0; i < count; i++) {
+                    if (parsed[i] != null) {
+                        addMedia(parsed[i]);
+                        report.recordLoaded();
+                    } else {
+                        report.recordRejected(base + i, lines[i], errors[i]);
+                        if (rejects != null) {
+                            rejects.println((base + i) + "\t" + withoutLinePrefix(errors[i], base + i) + "\t" + lines[i]);
+                        }
+                    }
+                }
+                firstLineNumber += count;
+            } while (count == LENIENT_BATCH_SIZE);
+        } catch (IOException e) {
+            // Handles file not found or read errors
+            throw new InvalidMediaDataException("Error reading file '" + filename + "': " + e.getMessage(), e);
+        }
+        // PrintWriter keeps write (and close) errors to itself until asked
+        if (rejectWriter != null && rejectWriter.checkError()) {
+            throw new InvalidMediaDataException("Error writing reject file '" + rejectFilename + "' ("
+                    + report.getLoaded() + " items were loaded)");
+        }
+        return report;
+    }
+
+    // Parse errors start with "Line N: "; the reject file has its own line number column
+    private static String withoutLinePrefix(String reason, int lineNumber) {
+        String prefix = "Line " + lineNumber + ": ";
+        return reason.startsWith(prefix) ? reason.substring(prefix.length()) : reason;
+    }
+
+    /*
+     * Parses a media file and hands every item to the given sink.
+     * Shared by loadFromFile and by other storage backends (e.g. OffHeapCatalog)
+     * so that the file format and its validation live in one place.
+     */
+    static void readMediaFile(String filename, Consumer<Media> sink) throws InvalidMediaDataException {
         try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
             String line;
             int lineNumber = 0;
             
             while ((line = reader.readLine()) != null) {
                 lineNumber++;
-                String[] tokens = line.split(",");  // Split line by comma
-                
-                // Validate minimum number of fields
-                if (tokens.length < 6) {
-                    throw new InvalidMediaDataException(
-                        "Line " + lineNumber + ": Insufficient data fields. Expected at least 6, got " + tokens.length);
-                }
-                
-                String type = tokens[0].trim();         // Get the media type (e.g., Series)
-                try {
-                    // Depending on the type, construct the correct object
-                    switch (type) {
-                        case "Series":
-                            if (tokens.length < 7) {
-                                throw new InvalidMediaDataException(
-                                    "Line " + lineNumber + ": Series requires 7 fields (Type,ID,Title,Genre,Rating,Duration,Seasons)");
-                            }
-                            addMedia(new Series(
-                                    tokens[1].trim(),   //ID
-                                    tokens[2].trim(),   //Title
-                                    tokens[3].trim(),  //Genre
-                                    Double.parseDouble(tokens[4].trim()), //Rating
-                                    Integer.parseInt(tokens[5].trim()),  //Duration
-                                    Integer.parseInt(tokens[6].trim()))); //Number of seasons
-                            break;
-                        case "Documentary":
-                            addMedia(new Documentary(
-                                    tokens[1].trim(),  //ID
-                                    tokens[2].trim(),   //title
-                                    tokens[3].trim(),   //Genre
-                                    Double.parseDouble(tokens[4].trim()), //Rating
-                                    Integer.parseInt(tokens[5].trim()),  //Duration
-                                    tokens[6].trim()));  //Topic or subject
-                            break;
-                        case "Movie":
-                            if (tokens.length < 7) {
-                                throw new InvalidMediaDataException(
-                                    "Line " + lineNumber + ": Movie requires 7 fields (Type,ID,Title,Genre,Rating,Duration,Director)");
-                            }
-                            addMedia(new Movie(
-                                    tokens[1].trim(),   //ID
-                                    tokens[2].trim(),   //Title
-                                    tokens[3].trim(),   //Genre
-                                    Double.parseDouble(tokens[4].trim()), //Rating
-                                    Integer.parseInt(tokens[5].trim()),   //Duration
-                                    tokens[6].trim()));  //Director
-                            break;
-                        default:
-                            throw new InvalidMediaDataException(
-                                "Line " + lineNumber + ": Unknown media type '" + type + "'. Expected 'Series', 'Documentary', or 'Movie'");
-                    }  } catch (NumberFormatException e) {
-                    throw new InvalidMediaDataException(
-                        "Line " + lineNumber + ": Invalid number format in data: " + e.getMessage(), e);
-                } catch (IllegalArgumentException e) {
-                    throw new InvalidMediaDataException(
-                        "Line " + lineNumber + ": Invalid data values: " + e.getMessage(), e);
+                sink.accept(parseTokens(line.split(","), lineNumber, null));  // Split line by comma
+            }
+        } catch (IOException e) {
+            // Handles file not found or read errors
+            throw new InvalidMediaDataException("Error reading file '" + filename + "': " + e.getMessage(), e);
+        }
+    }
+
+    /*
+     * Lazy variant of readMediaFile. Lines are read as raw bytes so that the byte
+     * offset of the detail field (7th column) is known; Movie and Documentary
+     * items get a LazyText pointing at it instead of a decoded String.
+     */
+    static void readMediaFileLazily(String filename, Consumer<Media> sink) throws InvalidMediaDataException {
+        LazyText.Source source = new LazyText.Source(filename);
+        try (InputStream in = new FileInputStream(filename)) {
+            byte[] chunk = new byte[64 * 1024];
+            byte[] line = new byte[256];
+            int length = 0;
+            long lineStart = 0;
+            long position = 0;
+            int lineNumber = 0;
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                for (int i = 0; i < read; i++, position++) {
+                    byte b = chunk[i];
+                    if (b == '\n') {
+                        lineNumber++;
+                        int end = (length > 0 && line[length - 1] == '\r') ? length - 1 : length;
+                        sink.accept(parseLazyLine(line, end, lineStart, lineNumber, source));
+                        length = 0;
+                        lineStart = position + 1;
+                    } else {
+                        if (length == line.length) {
+                            line = Arrays.copyOf(line, length * 2);
+                        }
+                        line[length++] = b;
+                    }
                 }
             }
+            // Last line without a trailing newline
+            if (length > 0) {
+                int end = line[length - 1] == '\r' ? length - 1 : length;
+                sink.accept(parseLazyLine(line, end, lineStart, lineNumber + 1, source));
+            }
         } catch (IOException e) {
             // Handles file not found or read errors
             throw new InvalidMediaDataException("Error reading file '" + filename + "': " + e.getMessage(), e);
         }
     }
+
+    /*
+     * Parses one raw line, replacing the detail column by a LazyText when possible.
+     * Only the six columns before the detail are decoded; the detail bytes are just
+     * located (and trimmed of surrounding whitespace).
+     */
+    private static Media parseLazyLine(byte[] line, int length, long lineStart, int lineNumber,
+                                       LazyText.Source source) throws InvalidMediaDataException {
+        int start = 0;
+        int commas = 0;
+        while (commas < 6 && start < length) {
+            if (line[start++] == ',') {
+                commas++;
+            }
+        }
+        int end = start;
+        while (end < length && line[end] != ',') {
+            end++;
+        }
+        boolean lazy = commas == 6 && end > start;
+        String[] tokens = null;
+        if (lazy) {
+            String[] leading = new String(line, 0, start - 1, java.nio.charset.StandardCharsets.UTF_8).split(",", -1);
+            String type = leading[0].trim();
+            lazy = leading.length == 6 && (type.equals("Movie") || type.equals("Documentary"));
+            tokens = Arrays.copyOf(leading, 7);
+            tokens[6] = "";   // not read when a LazyText is passed
+        }
+        if (!lazy) {
+            return parseTokens(new String(line, 0, length, java.nio.charset.StandardCharsets.UTF_8).split(","), lineNumber, null);
+        }
+        while (start < end && line[start] <= ' ') {
+            start++;
+        }
+        while (end > start && line[end - 1] <= ' ') {
+            end--;
+        }
+        // The similarity features need a hash of the detail; take it now rather than decode it later
+        long hash = Media.detailHashOf(new String(line, start, end - start, java.nio.charset.StandardCharsets.UTF_8));
+        return parseTokens(tokens, lineNumber, new LazyText(source, lineStart + start, end - start, hash));
+    }
+
+    /*
+     * Builds one media item from the comma-separated fields of a line.
+     * When lazyDetail is not null, Movie directors and Documentary subjects use it
+     * instead of tokens[6].
+     */
+    static Media parseTokens(String[] tokens, int lineNumber, LazyText lazyDetail) throws InvalidMediaDataException {
+        // Validate minimum number of fields
+        if (tokens.length < 6) {
+            throw new InvalidMediaDataException(
+                "Line " + lineNumber + ": Insufficient data fields. Expected at least 6, got " + tokens.length);
+        }
+        
+        String type = tokens[0].trim();         // Get the media type (e.g., Series)
+        try {
+            // Depending on the type, construct the correct object
+            switch (type) {
+                case "Series":
+                    if (tokens.length < 7) {
+                        throw new InvalidMediaDataException(
+                            "Line " + lineNumber + ": Series requires 7 fields (Type,ID,Title,Genre,Rating,Duration,Seasons)");
+                    }
+                    return new Series(
+                            tokens[1].trim(),   //ID
+                            tokens[2].trim(),   //Title
+                            tokens[3].trim(),  //Genre
+                            Double.parseDouble(tokens[4].trim()), //Rating
+                            Integer.parseInt(tokens[5].trim()),  //Duration
+                            Integer.parseInt(tokens[6].trim())); //Number of seasons
+                case "Documentary":
+                    if (tokens.length < 7) {
+                        throw new InvalidMediaDataException(
+                            "Line " + lineNumber + ": Documentary requires 7 fields (Type,ID,Title,Genre,Rating,Duration,Subject)");
+                    }
+                    if (lazyDetail != null) {
+                        return new Documentary(
+                                tokens[1].trim(),  //ID
+                                tokens[2].trim(),   //title
+                                tokens[3].trim(),   //Genre
+                                Double.parseDouble(tokens[4].trim()), //Rating
+                                Integer.parseInt(tokens[5].trim()),  //Duration
+                                lazyDetail);  //Topic or subject, decoded on demand
+                    }
+                    return new Documentary(
+                            tokens[1].trim(),  //ID
+                            tokens[2].trim(),   //title
+                            tokens[3].trim(),   //Genre
+                            Double.parseDouble(tokens[4].trim()), //Rating
+                            Integer.parseInt(tokens[5].trim()),  //Duration
+                            tokens[6].trim());  //Topic or subject
+                case "Movie":
+                    if (tokens.length < 7) {
+                        throw new InvalidMediaDataException(
+                            "Line " + lineNumber + ": Movie requires 7 fields (Type,ID,Title,Genre,Rating,Duration,Director)");
+                    }
+                    if (lazyDetail != null) {
+                        return new Movie(
+                                tokens[1].trim(),   //ID
+                                tokens[2].trim(),   //Title
+                                tokens[3].trim(),   //Genre
+                                Double.parseDouble(tokens[4].trim()), //Rating
+                                Integer.parseInt(tokens[5].trim()),   //Duration
+                                lazyDetail);  //Director, decoded on demand
+                    }
+                    return new Movie(
+                            tokens[1].trim(),   //ID
+                            tokens[2].trim(),   //Title
+                            tokens[3].trim(),   //Genre
+                            Double.parseDouble(tokens[4].trim()), //Rating
+                            Integer.parseInt(tokens[5].trim()),   //Duration
+                            tokens[6].trim());  //Director
+                default:
+                    throw new InvalidMediaDataException(
+                        "Line " + lineNumber + ": Unknown media type '" + type + "'. Expected 'Series', 'Documentary', or 'Movie'");
+            }  } catch (NumberFormatException e) {
+            throw new InvalidMediaDataException(
+                "Line " + lineNumber + ": Invalid number format in data: " + e.getMessage(), e);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidMediaDataException(
+                "Line " + lineNumber + ": Invalid data values: " + e.getMessage(), e);
+        }
+    }
     
     /*
-     * Searches for media items whose title contains the given string (case-insensitive).
+     * Searches for media items whose title contains the given string (case- and
+     * accent-insensitive, independent of the default locale; see SearchKey).
      * param title The search keyword
      * return A list of matched media items
      */
 
     public ArrayList<Media> searchByTitle(String title) {
+        Metrics.Span span = Metrics.begin("library.searchByTitle");
         ArrayList<Media> results = new ArrayList<>();
+        byte[] needle = SearchKey.of(title);
+        SearchIndex index = getCurrentSearchIndex();
+        if (index != null) {
+            for (int i = 0; i < index.catalog.size(); i++) {
+                if (index.catalog.titleContains(i, needle)) {
+                    results.add(index.source.get(i));
+                }
+            }
+            span.end(results.size());
+            return results;
+        }
         for (Media m : mediaList) {
-            if (m.getTitle().toLowerCase().contains(title.toLowerCase())) {
+            if (SearchKey.contains(m.getTitleKey(), needle)) {
                 results.add(m);
             }
         }
+        span.end(results.size());
         return results;
     }
     
     /*
-     * Searches for media items by genre (case-insensitive).
+     * Searches for media items by genre (case- and accent-insensitive, see SearchKey).
      * @param genre The genre to search for
      * @return A list of matched media items
      */
     public ArrayList<Media> getMediaByGenre(String genre) {
+        Metrics.Span span = Metrics.begin("library.getMediaByGenre");
         ArrayList<Media> results = new ArrayList<>();
+        SearchIndex index = getCurrentSearchIndex();
+        if (index != null) {
+            boolean[] codes = index.catalog.genresMatching(genre);
+            for (int i = 0; codes != null && i < index.catalog.size(); i++) {
+                if (codes[index.catalog.getGenreCode(i)]) {
+                    results.add(index.source.get(i));
+                }
+            }
+            span.end(results.size());
+            return results;
+        }
+        byte[] wanted = SearchKey.of(genre);
         for (Media m : mediaList) {
-            if (m.getGenre().toLowerCase().equals(genre.toLowerCase())) {
+            if (SearchKey.equals(m.getGenreKey(), wanted)) {
                 results.add(m);
             }
         }
+        span.end(results.size());
         return results;
     }
     
+    /*
+     * Paged variants of searchByTitle / getMediaByGenre.
+     * offset/limit pages skip 'offset' matches without collecting them; token pages
+     * resume exactly where the previous page stopped. Each page scans one pinned
+     * storage generation, and the token records the slot layout plus the ID of the
+     * last item scanned, so a background compaction between pages neither skips
+     * nor repeats items. Items added meanwhile show up on later pages; a token whose
+     * last item was removed, or that predates sortMedia(), is rejected with an
+     * IllegalArgumentException. Scanning stops as soon as the page is full.
+     */
+    public MediaPage searchByTitle(String title, int offset, int limit) {
+        return scanPage(titleFilter(title), mediaList.pin(), offset, limit);
+    }
+
+    public MediaPage searchByTitle(String title, String continuationToken, int limit) {
+        return scanPage(titleFilter(title), resumeScan(continuationToken), 0, limit);
+    }
+
+    public MediaPage getMediaByGenre(String genre, int offset, int limit) {
+        return scanPage(genreFilter(genre), mediaList.pin(), offset, limit);
+    }
+
+    public MediaPage getMediaByGenre(String genre, String continuationToken, int limit) {
+        return scanPage(genreFilter(genre), resumeScan(continuationToken), 0, limit);
+    }
+
+    private MediaSlots.Pinned resumeScan(String continuationToken) {
+        MediaSlots.ScanPosition position = MediaPage.scanPositionOf(continuationToken);
+        return position == null ? mediaList.pin() : mediaList.resume(position);
+    }
+
+    // Lazy streams: nothing is collected, items are matched as the caller pulls them
+    public Stream<Media> streamByTitle(String title) {
+        return mediaList.stream().filter(titleFilter(title));
+    }
+
+    public Stream<Media> streamByGenre(String genre) {
+        return mediaList.stream().filter(genreFilter(genre));
+    }
+
+    private static Predicate<Media> titleFilter(String title) {
+        byte[] needle = SearchKey.of(title);
+        return m -> SearchKey.contains(m.getTitleKey(), needle);
+    }
+
+    private static Predicate<Media> genreFilter(String genre) {
+        byte[] wanted = SearchKey.of(genre);
+        return m -> SearchKey.equals(m.getGenreKey(), wanted);
+    }
+
+    // Scans the pinned slots from its start, skips 'skip' matches, collects up to 'limit' and stops
+    private MediaPage scanPage(Predicate<Media> filter, MediaSlots.Pinned slots, int skip, int limit) {
+        if (skip < 0 || limit < 0) {
+            throw new IllegalArgumentException("Offset and limit must not be negative");
+        }
+        ArrayList<Media> items = new ArrayList<>(Math.min(limit, 64));
+        int position = slots.start();
+        String lastId = slots.startId();
+        while (position < slots.slotCount() && items.size() < limit) {
+            Media m = slots.get(position++);
+            if (m == null) {
+                continue;
+            }
+            lastId = m.getId();
+            if (filter.test(m)) {
+                if (skip > 0) {
+                    skip--;
+                } else {
+                    items.add(m);
+                }
+            }
+        }
+        String next = position < slots.slotCount() ? MediaPage.tokenFor(slots.positionAt(position, lastId)) : null;
+        return new MediaPage(items, next);
+    }
+
+
     /*
      * Sorts the media list using natural ordering (defined in Media class via Comparable interface).
      * This requires `Media` to implement Comparable<Media>.
+     * Note: this reorders the shared list; getSortedView gives sorted access without doing that.
      */
     public void sortMedia() {
-        Collections.sort(mediaList);
+        mediaList.sort(null);
+    }
+
+    /*
+     * Returns a read-only list of all media in the given order. The views are kept
+     * sorted as items are added and removed, so this does not sort on every call.
+     * The list is a snapshot: later changes to the library do not show up in it.
+     */
+    public List<Media> getSortedView(MediaOrder order) {
+        return sortedViews.get(order, mediaList.snapshot());
+    }
+
+    // Rebuilds the sorted views, e.g. after changing the title or rating of an item
+    public void refreshSortedViews() {
+        sortedViews.rebuild(mediaList.snapshot());
+        durationRatingIndex = null;
+        searchIndex = null;
+    }
+
+    /*
+     * Highest rated items with rating >= minRating and duration <= maxDuration
+     * (ties in library order), see iterateByRating.
+     */
+    public ArrayList<Media> getTopRated(double minRating, int maxDuration, int limit) {
+        DurationRatingIndex index = getCurrentDurationRatingIndex();
+        if (index != null) {
+            return index.topRated(minRating, maxDuration, limit);
+        }
+        // Index not ready: one pass keeping the best 'limit' so far (ties in library order)
+        ArrayList<Media> result = new ArrayList<>(Math.max(0, Math.min(limit, 64)));
+        if (limit <= 0) {
+            return result;
+        }
+        for (Media media : getAllMedia()) {
+            if (media.getRating() < minRating || media.getDuration() > maxDuration) {
+                continue;
+            }
+            if (result.size() == limit && media.getRating() <= result.get(limit - 1).getRating()) {
+                continue;
+            }
+            int position = result.size();
+            while (position > 0 && result.get(position - 1).getRating() < media.getRating()) {
+                position--;
+            }
+            result.add(position, media);
+            if (result.size() > limit) {
+                result.remove(limit);
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Items with rating >= minRating and duration <= maxDuration, highest rated first
+     * (ties in library order). Served lazily from the DurationRatingIndex when it is
+     * current; otherwise (right after a change, until the background rebuild is done)
+     * from a filter and sort of the current items, which is what the index replaced.
+     * Only reads the item snapshot and the published index, so it is safe to call
+     * from other threads while the library is being changed.
+     */
+    public Iterator<Media> iterateByRating(double minRating, int maxDuration) {
+        return iterateByRating(minRating, maxDuration, null);
+    }
+
+    // Same, restricted to items accepted by 'filter' (null for all); the scan filters before sorting
+    public Iterator<Media> iterateByRating(double minRating, int maxDuration, Predicate<Media> filter) {
+        DurationRatingIndex index = getCurrentDurationRatingIndex();
+        if (index != null) {
+            Iterator<Media> candidates = index.iterator(minRating, maxDuration);
+            return filter == null ? candidates : new FilteringIterator(candidates, filter);
+        }
+        return Collections.unmodifiableList(collectByRating(minRating, maxDuration, filter)).iterator();
+    }
+
+    /*
+     * Every match of iterateByRating, as a list. This always filters and sorts the
+     * current items: when the caller wants all matches anyway, that is cheaper than
+     * merging the index runs, which only pays off when the walk stops early.
+     */
+    public ArrayList<Media> collectByRating(double minRating, int maxDuration, Predicate<Media> filter) {
+        Metrics.Span span = Metrics.begin("library.scanByRating");
+        ArrayList<Media> matches = new ArrayList<>();
+        for (Media media : getAllMedia()) {
+            if (media.getRating() >= minRating && media.getDuration() <= maxDuration
+                    && (filter == null || filter.test(media))) {
+                matches.add(media);
+            }
+        }
+        // Stable, so ties stay in library order like in the index
+        matches.sort((m1, m2) -> Double.compare(m2.getRating(), m1.getRating()));
+        span.end(matches.size());
+        return matches;
+    }
+
+    /*
+     * The (duration, rating) index if it matches the current items, or null if the
+     * library changed since it was built. In that case a rebuild is scheduled on a
+     * background thread, so callers never wait for the O(n log n) build; they fall
+     * back to a scan (see iterateByRating) until it is published.
+     */
+    public DurationRatingIndex getCurrentDurationRatingIndex() {
+        List<Media> all = getAllMedia();
+        DurationRatingIndex index = durationRatingIndex;
+        if (index != null && index.getSource() == all) {
+            return index;
+        }
+        if (indexRebuildQueued.compareAndSet(false, true)) {
+            scheduleIndexRebuild(all);
+        }
+        return null;
+    }
+
+    private void scheduleIndexRebuild(List<Media> seen) {
+        INDEX_BUILDER.schedule(() -> rebuildIndexes(seen), INDEX_REBUILD_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Off-heap search: searchByTitle(String) and getMediaByGenre(String) scan an
+     * OffHeapCatalog copy of the items (title keys and genre codes in direct buffers,
+     * no pointer chasing per item) and only touch the Media objects they return.
+     * This speeds up the scans but does not reduce heap use: the library still holds
+     * every Media object, and the index adds about 40 bytes plus the title key per
+     * item outside the heap. Like the rating index it is rebuilt in the background
+     * after changes; until then the searches scan the items as usual.
+     */
+    public void setOffHeapSearch(boolean enabled) {
+        offHeapSearch = enabled;
+        if (!enabled) {
+            searchIndex = null;
+        } else if (indexRebuildQueued.compareAndSet(false, true)) {
+            scheduleIndexRebuild(getAllMedia());
+        }
+    }
+
+    // The off-heap search index if it is enabled and matches the current items, else null
+    private SearchIndex getCurrentSearchIndex() {
+        if (!offHeapSearch) {
+            return null;
+        }
+        List<Media> all = getAllMedia();
+        SearchIndex index = searchIndex;
+        if (index != null && index.source == all) {
+            return index;
+        }
+        if (indexRebuildQueued.compareAndSet(false, true)) {
+            scheduleIndexRebuild(all);
+        }
+        return null;
+    }
+
+    /**
+     * An off-heap search catalog and the item snapshot it was built from (ordinal i is source.get(i))
+     */
+    private static final class SearchIndex {
+        final List<Media> source;
+        final OffHeapCatalog catalog;
+
+        SearchIndex(List<Media> source) {
+            this.source = source;
+            this.catalog = OffHeapCatalog.searchIndex(source);
+        }
+    }
+
+    /**
+     * Lazily skips the items a predicate rejects
+     */
+    private static final class FilteringIterator implements Iterator<Media> {
+        private final Iterator<Media> source;
+        private final Predicate<Media> filter;
+        private Media next;
+
+        FilteringIterator(Iterator<Media> source, Predicate<Media> filter) {
+            this.source = source;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && source.hasNext()) {
+                Media candidate = source.next();
+                if (filter.test(candidate)) {
+                    next = candidate;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Media next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Media media = next;
+            next = null;
+            return media;
+        }
+    }
+
+    private void rebuildIndexes(List<Media> seen) {
+        List<Media> all = getAllMedia();
+        if (all != seen) {
+            // Still changing: wait for a quiet period before paying for a build
+            scheduleIndexRebuild(all);
+            return;
+        }
+        // Cleared before building, so a change during the build queues another one
+        indexRebuildQueued.set(false);
+        DurationRatingIndex index = durationRatingIndex;
+        if (index == null || index.getSource() != all) {
+            Metrics.Span span = Metrics.begin("library.buildDurationRatingIndex");
+            durationRatingIndex = new DurationRatingIndex(all);
+            span.end(all.size());
+        }
+        SearchIndex search = searchIndex;
+        if (offHeapSearch && (search == null || search.source != all)) {
+            Metrics.Span span = Metrics.begin("library.buildSearchIndex");
+            searchIndex = new SearchIndex(all);
+            span.end(all.size());
+        }
     }
 
     /*
      * Displays details of all media items in the library.
-     * This calls each media's `getDisplayDetails()` method.
+     * Each item renders itself with `appendDetails()` into one reused buffer
+     * (same text as `getDisplayDetails()`), so no String is built per item.
      */
     public void displayAll() {
-        for (Media m : mediaList) {
-            System.out.println(m.getDisplayDetails());
+        DetailsWriter out = new DetailsWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        try {
+            for (Media m : mediaList) {
+                out.writeDetails(m);
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Error displaying media: " + e.getMessage());
         }
     }
+    // statistics for this library (also register it with User.addWatchListener to count watches)
+    public LibraryStatistics getStatistics() {
+        return statistics;
+    }
+
   // to  get  the complete list of all media items.
-    public ArrayList<Media> getAllMedia() {
-        return mediaList;
+  // This is a read-only snapshot: later adds/removes do not change it.
+    public List<Media> getAllMedia() {
+        return mediaList.snapshot();
+    }
+
+    /*
+     * Removed items are only tombstoned; a background compaction reclaims their
+     * slots once enough have piled up. This runs one compaction right away.
+     */
+    public void compact() {
+        mediaList.compact();
+    }
+
+    /*
+     * Estimated retained heap of the library, per component. Items are counted with
+     * their strings; indexes only count their own arrays and maps since they share
+     * the item objects. Walks every item, so it costs O(n).
+     */
+    public MemoryFootprint estimateMemory() {
+        MemoryFootprint footprint = new MemoryFootprint("Library");
+        long items = 0;
+        for (Media media : mediaList) {
+            items += MemoryEstimator.media(media);
+        }
+        footprint.add("items", items);
+        footprint.add("item storage", mediaList.estimateMemory());
+        footprint.add("ordinals", MemoryEstimator.hashMap(ordinalsById)
+                + ordinalsById.size() * MemoryEstimator.shallowSize(Integer.class)
+                + MemoryEstimator.arrayList(mediaByOrdinal.size())
+                + MemoryEstimator.primitiveArray(ordinalFingerprints.length, 8));
+        footprint.add("sorted views", sortedViews.estimateMemory());
+        DurationRatingIndex index = durationRatingIndex;
+        footprint.add("duration/rating index", index == null ? 0 : index.estimateMemory());
+        footprint.add("statistics", statistics.estimateMemory());
+        return footprint;
+    }
+
+    // Number of removed items whose slots have not been reclaimed yet
+    public int getTombstoneCount() {
+        return mediaList.getTombstoneCount();
     }
 }
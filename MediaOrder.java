@@ -0,0 +1,27 @@
+import java.util.Comparator;
+
+/**
+ * The orderings MediaLibrary keeps sorted views for.
+ * Every ordering ends with the media ID as a tie-breaker, so two different items
+ * never compare as equal and binary search can find an exact position.
+ */
+public enum MediaOrder {
+    // Alphabetical by title (same as Media.compareTo)
+    TITLE(Comparator.comparing(Media::getTitle)),
+    // Highest rating first
+    RATING(Comparator.comparingDouble(Media::getRating).reversed()),
+    // Shortest first
+    DURATION(Comparator.comparingInt(Media::getDuration)),
+    // Grouped by type (Documentary, Movie, Series), alphabetical within a type
+    TYPE(Comparator.comparing((Media m) -> m.getClass().getSimpleName()).thenComparing(Media::getTitle));
+
+    private final Comparator<Media> comparator;
+
+    MediaOrder(Comparator<Media> primary) {
+        this.comparator = primary.thenComparing(Media::getId);
+    }
+
+    public Comparator<Media> comparator() {
+        return comparator;
+    }
+}
@@ -0,0 +1,87 @@
+import java.util.ArrayList;
+
+/**
+ * One page of a paged query (search, genre lookup, recommendations).
+ *
+ * The continuation token is an opaque string: pass it back to the same query
+ * to get the next page. It is null when the query is known to be exhausted.
+ * Queries stop scanning as soon as a page is full, so the last page may
+ * occasionally come back empty.
+ */
+public class MediaPage {
+    private final ArrayList<Media> items;
+    private final String nextToken;
+
+    public MediaPage(ArrayList<Media> items, String nextToken) {
+        this.items = items;
+        this.nextToken = nextToken;
+    }
+
+    public ArrayList<Media> getItems() {
+        return items;
+    }
+
+    public String getNextToken() {
+        return nextToken;
+    }
+
+    public boolean hasMore() {
+        return nextToken != null;
+    }
+
+    // Builds the token for a scan that should resume at 'position'
+    static String tokenFor(int position) {
+        return "p" + Integer.toString(position, 36);
+    }
+
+    // Reads the resume position from a token (null means "from the start")
+    static int positionOf(String token) {
+        if (token == null || token.isEmpty()) {
+            return 0;
+        }
+        try {
+            if (token.charAt(0) == 'p') {
+                int position = Integer.parseInt(token.substring(1), 36);
+                if (position >= 0) {
+                    return position;
+                }
+            }
+        } catch (NumberFormatException e) {
+            // fall through to the error below
+        }
+        throw new IllegalArgumentException("Invalid continuation token: " + token);
+    }
+
+    // Builds the token for a library scan that should resume at 'position'
+    static String tokenFor(MediaSlots.ScanPosition position) {
+        return "s" + Long.toString(position.layout, 36) + "." + Long.toString(position.order, 36) + "."
+                + Integer.toString(position.slot, 36) + (position.lastId == null ? "" : "." + position.lastId);
+    }
+
+    // Reads a library scan position from a token (null means "from the start")
+    static MediaSlots.ScanPosition scanPositionOf(String token) {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        try {
+            if (token.charAt(0) == 's') {
+                String[] parts = token.substring(1).split("\\.", 4);
+                if (parts.length >= 3) {
+                    int slot = Integer.parseInt(parts[2], 36);
+                    if (slot >= 0) {
+                        return new MediaSlots.ScanPosition(Long.parseLong(parts[0], 36), Long.parseLong(parts[1], 36),
+                                                           slot, parts.length == 4 ? parts[3] : null);
+                    }
+                }
+            }
+        } catch (NumberFormatException e) {
+            // fall through to the error below
+        }
+        throw new IllegalArgumentException("Invalid continuation token: " + token);
+    }
+
+    @Override
+    public String toString() {
+        return "MediaPage [Items: " + items.size() + ", Next: " + nextToken + "]";
+    }
+}
@@ -0,0 +1,567 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * MediaSlots is the item storage behind MediaLibrary: an append-only array of
+ * slots plus a tombstone bitset.
+ *
+ * - Removing an item sets its tombstone bit instead of shifting the array, so a
+ *   removal costs O(1) (the slot is found through an ID index) and slot positions
+ *   stay stable until the next compaction.
+ * - Iteration and scans skip tombstoned slots.
+ * - Once enough slots are tombstoned, a background thread compacts the storage into
+ *   a new array and swaps it in. Readers never take a lock: they keep walking the
+ *   array they started on, and only writers wait for the short final swap step.
+ *
+ * Writes (add, remove, replace, sort) are synchronized; reads are lock-free.
+ *
+ * Positional scans (MediaLibrary's paged queries) pin one generation (see pin)
+ * and describe where they stopped with a ScanPosition, which resume() maps onto
+ * the current slots after a compaction.
+ */
+public class MediaSlots implements Iterable<Media> {
+    private static final int MIN_CAPACITY = 16;
+    // Compact when at least this many slots, and a quarter of all slots, are tombstones
+    private static final int COMPACTION_MIN_TOMBSTONES = 1024;
+
+    // One daemon thread compacts for every library
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "catalog-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * One storage array. Slots below 'size' are only overwritten by replace (with an
+     * item of the same ID) and tombstone bits are only ever set, so readers can walk
+     * a generation without locking.
+     */
+    private static final class Generation {
+        final Media[] slots;
+        final AtomicLongArray tombstones;
+        volatile int size;
+        // Changes whenever slots move (compaction, sort); growing keeps positions and layout
+        final long layout;
+        // Changes only when the items are reordered (sort); compaction keeps the order
+        final long order;
+
+        Generation(int capacity, long layout, long order) {
+            slots = new Media[capacity];
+            tombstones = new AtomicLongArray((capacity + 63) >>> 6);
+            this.layout = layout;
+            this.order = order;
+        }
+
+        boolean isLive(int slot) {
+            return (tombstones.get(slot >>> 6) & (1L << slot)) == 0;
+        }
+
+        // Only called by the (single) writer holding the MediaSlots lock
+        void markRemoved(int slot) {
+            tombstones.set(slot >>> 6, tombstones.get(slot >>> 6) | (1L << slot));
+        }
+    }
+
+    private final AtomicLong layouts = new AtomicLong();
+    private volatile Generation current = new Generation(MIN_CAPACITY, 0, 0);
+    private volatile int liveCount = 0;
+    // Tombstones in the current generation (guarded by this)
+    private int tombstoneCount = 0;
+    // ID -> slots holding a live item with that ID (normally just one; guarded by this)
+    private final HashMap<String, int[]> slotsById = new HashMap<>();
+    // Cached list of live items for snapshot(), dropped on every change
+    private volatile List<Media> snapshot;
+    // Bumped on every change so a snapshot built during a change is not cached
+    private volatile long version = 0;
+    private final Object compactionLock = new Object();
+    private final AtomicBoolean compactionQueued = new AtomicBoolean(false);
+    private volatile long compactions = 0;
+    // Bumped by replace, so a compaction can tell that slots it copied have changed
+    private volatile long replacements = 0;
+
+    // Appends an item and returns its slot
+    public synchronized int add(Media media) {
+        Generation generation = current;
+        int slot = generation.size;
+        if (slot == generation.slots.length) {
+            generation = copyOf(generation, slot * 2);
+            current = generation;
+        }
+        generation.slots[slot] = media;
+        generation.size = slot + 1;
+        int[] existing = slotsById.get(media.getId());
+        if (existing == null) {
+            slotsById.put(media.getId(), new int[] {slot});
+        } else {
+            int[] more = Arrays.copyOf(existing, existing.length + 1);
+            more[existing.length] = slot;
+            slotsById.put(media.getId(), more);
+        }
+        liveCount++;
+        snapshot = null;
+        version++;
+        return slot;
+    }
+
+    /*
+     * Applies a batch in one step: items.get(i) takes the slot of replaced.get(i), or
+     * is appended when that is null. Readers see either none or all of the batch:
+     * appends become visible with a single size update, and a batch that replaces
+     * items is built in a copy of the array that is then swapped in.
+     */
+    public synchronized void addAll(List<Media> items, List<Media> replaced) {
+        Generation generation = current;
+        int size = generation.size;
+        int appended = 0;
+        boolean replacing = false;
+        for (Media previous : replaced) {
+            if (previous == null) {
+                appended++;
+            } else {
+                replacing = true;
+            }
+        }
+        if (replacing || size + appended > generation.slots.length) {
+            generation = copyOf(generation, Math.max(generation.slots.length, size + appended + (size + appended) / 2));
+        }
+        for (int i = 0; i < items.size(); i++) {
+            Media media = items.get(i);
+            Media previous = replaced.get(i);
+            int[] existing = previous == null ? null : slotsById.get(previous.getId());
+            int slot = -1;
+            for (int j = 0; existing != null && j < existing.length && slot < 0; j++) {
+                if (previous.equals(generation.slots[existing[j]])) {
+                    slot = existing[j];
+                }
+            }
+            if (slot >= 0) {
+                // Same ID (Media.equals), so the ID index already points at this slot
+                generation.slots[slot] = media;
+                continue;
+            }
+            generation.slots[size] = media;
+            existing = slotsById.get(media.getId());
+            if (existing == null) {
+                slotsById.put(media.getId(), new int[] {size});
+            } else {
+                int[] more = Arrays.copyOf(existing, existing.length + 1);
+                more[existing.length] = size;
+                slotsById.put(media.getId(), more);
+            }
+            size++;
+            liveCount++;
+        }
+        generation.size = size;
+        current = generation;
+        snapshot = null;
+        version++;
+    }
+
+    /*
+     * Tombstones the oldest live item that equals 'media' (the item that
+     * ArrayList.remove would have removed). Media.equals implies the same ID, so only
+     * the slots indexed under that ID are checked. Returns false if there is none.
+     */
+    public synchronized boolean remove(Media media) {
+        int[] existing = slotsById.get(media.getId());
+        if (existing == null) {
+            return false;
+        }
+        Generation generation = current;
+        int match = -1;
+        for (int i = 0; i < existing.length && match < 0; i++) {
+            if (media.equals(generation.slots[existing[i]])) {
+                match = i;
+            }
+        }
+        if (match < 0) {
+            return false;
+        }
+        if (existing.length == 1) {
+            slotsById.remove(media.getId());
+        } else {
+            int[] rest = new int[existing.length - 1];
+            System.arraycopy(existing, 0, rest, 0, match);
+            System.arraycopy(existing, match + 1, rest, match, rest.length - match);
+            slotsById.put(media.getId(), rest);
+        }
+        generation.markRemoved(existing[match]);
+        tombstoneCount++;
+        liveCount--;
+        snapshot = null;
+        version++;
+        if (tombstoneCount >= COMPACTION_MIN_TOMBSTONES && tombstoneCount * 4L >= current.size
+                && compactionQueued.compareAndSet(false, true)) {
+            COMPACTOR.execute(() -> {
+                compactionQueued.set(false);
+                compact();
+            });
+        }
+        return true;
+    }
+
+    /*
+     * Puts 'media' into the slot of the oldest live item that equals 'previous' (same
+     * ID), keeping its position in iteration order. Returns false if there is none.
+     */
+    public synchronized boolean replace(Media previous, Media media) {
+        int[] existing = slotsById.get(previous.getId());
+        if (existing == null || !previous.getId().equals(media.getId())) {
+            return false;
+        }
+        Generation generation = current;
+        for (int slot : existing) {
+            if (previous.equals(generation.slots[slot])) {
+                generation.slots[slot] = media;
+                replacements++;
+                snapshot = null;
+                version++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether a live item equals 'media' (that is, whether remove(media) would succeed)
+    public synchronized boolean contains(Media media) {
+        int[] existing = slotsById.get(media.getId());
+        if (existing != null) {
+            Generation generation = current;
+            for (int slot : existing) {
+                if (media.equals(generation.slots[slot])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Number of live (not removed) items
+    public int size() {
+        return liveCount;
+    }
+
+    // Number of slots in use, including tombstones; slot positions are below this
+    public int slotCount() {
+        return current.size;
+    }
+
+    public synchronized int getTombstoneCount() {
+        return tombstoneCount;
+    }
+
+    public long getCompactionCount() {
+        return compactions;
+    }
+
+    // Estimated bytes of the slot array, tombstones, ID index and cached snapshot (not the items)
+    public synchronized long estimateMemory() {
+        Generation generation = current;
+        long bytes = MemoryEstimator.referenceArray(generation.slots.length)
+                + MemoryEstimator.primitiveArray(generation.tombstones.length(), 8)
+                + MemoryEstimator.hashMap(slotsById);
+        for (int[] slots : slotsById.values()) {
+            bytes += MemoryEstimator.primitiveArray(slots.length, 4);
+        }
+        List<Media> list = snapshot;
+        if (list != null) {
+            bytes += MemoryEstimator.arrayList(list.size());
+        }
+        return bytes;
+    }
+
+    // Returns the item in a slot, or null if the slot is tombstoned or unused
+    public Media get(int slot) {
+        Generation generation = current;
+        if (slot < 0 || slot >= generation.size || !generation.isLive(slot)) {
+            return null;
+        }
+        return generation.slots[slot];
+    }
+
+    /**
+     * Where a positional scan stopped: the next slot to look at in a given layout,
+     * and the ID of the last live item before it (null if there was none)
+     */
+    public static final class ScanPosition {
+        final long layout;
+        final long order;
+        final int slot;
+        final String lastId;
+
+        ScanPosition(long layout, long order, int slot, String lastId) {
+            this.layout = layout;
+            this.order = order;
+            this.slot = slot;
+            this.lastId = lastId;
+        }
+    }
+
+    /**
+     * One generation pinned for a positional scan: slots never move under it, even
+     * if a compaction swaps in a new generation meanwhile. Items appended after
+     * pinning are not part of it.
+     */
+    public static final class Pinned {
+        private final Generation generation;
+        private final int end;
+        private final int start;
+        private final String startId;
+
+        private Pinned(Generation generation, int start, String startId) {
+            this.generation = generation;
+            this.end = generation.size;
+            this.start = start;
+            this.startId = startId;
+        }
+
+        // Slot the scan should start at (0, or where a resumed scan stopped)
+        public int start() {
+            return start;
+        }
+
+        // ID of the last live item before start(), as far as known (null if none)
+        public String startId() {
+            return startId;
+        }
+
+        public int slotCount() {
+            return end;
+        }
+
+        // The item in a slot, or null if the slot was removed
+        public Media get(int slot) {
+            return slot >= 0 && slot < end && generation.isLive(slot) ? generation.slots[slot] : null;
+        }
+
+        // Position to resume at 'slot' later, 'lastId' being the last live item before it
+        public ScanPosition positionAt(int slot, String lastId) {
+            return new ScanPosition(generation.layout, generation.order, slot, lastId);
+        }
+    }
+
+    // Pins the current generation for a scan from the first slot
+    public Pinned pin() {
+        return new Pinned(current, 0, null);
+    }
+
+    /*
+     * Pins the current generation for a scan resuming at 'position'. If a compaction
+     * moved the slots since, the scan continues after the current slot of the last
+     * item it saw (the first one, if that ID is stored more than once). Throws
+     * IllegalArgumentException if that is not possible: the items were reordered by
+     * sort() or that item has been removed.
+     */
+    public synchronized Pinned resume(ScanPosition position) {
+        Generation generation = current;
+        if (position.layout == generation.layout) {
+            return new Pinned(generation, Math.min(position.slot, generation.size), position.lastId);
+        }
+        if (position.order != generation.order) {
+            throw new IllegalArgumentException("Continuation token is no longer valid: the items were reordered");
+        }
+        if (position.lastId == null) {
+            // Only removed slots came before: they are gone after compaction
+            return new Pinned(generation, 0, null);
+        }
+        int[] existing = slotsById.get(position.lastId);
+        if (existing == null) {
+            throw new IllegalArgumentException("Continuation token is no longer valid: its item was removed");
+        }
+        int slot = existing[0];
+        for (int other : existing) {
+            slot = Math.min(slot, other);
+        }
+        return new Pinned(generation, slot + 1, position.lastId);
+    }
+
+    // Iterates the live items of the generation current when iteration starts
+    @Override
+    public Iterator<Media> iterator() {
+        Generation generation = current;
+        int end = generation.size;
+        return new Iterator<Media>() {
+            private int next = advance(0);
+
+            private int advance(int slot) {
+                while (slot < end && !generation.isLive(slot)) {
+                    slot++;
+                }
+                return slot;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < end;
+            }
+
+            @Override
+            public Media next() {
+                if (next >= end) {
+                    throw new NoSuchElementException();
+                }
+                Media media = generation.slots[next];
+                next = advance(next + 1);
+                return media;
+            }
+        };
+    }
+
+    public Stream<Media> stream() {
+        return StreamSupport.stream(Spliterators.spliterator(iterator(), liveCount, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /*
+     * Returns the live items as a read-only list. The list is cached until the next
+     * change and never changes afterwards, so it is safe to read from other threads.
+     */
+    public List<Media> snapshot() {
+        List<Media> list = snapshot;
+        if (list == null) {
+            long builtFrom = version;
+            ArrayList<Media> items = new ArrayList<>(liveCount);
+            for (Media media : this) {
+                items.add(media);
+            }
+            list = Collections.unmodifiableList(items);
+            synchronized (this) {
+                if (version == builtFrom) {
+                    snapshot = list;
+                }
+            }
+        }
+        return list;
+    }
+
+    // Reorders the live items (natural order when comparator is null); also drops tombstones
+    public void sort(Comparator<? super Media> comparator) {
+        synchronized (compactionLock) {
+            synchronized (this) {
+                Media[] live = snapshot().toArray(new Media[0]);
+                Arrays.sort(live, comparator);
+                Generation sorted = new Generation(Math.max(MIN_CAPACITY, live.length + live.length / 2),
+                                                   layouts.incrementAndGet(), current.order + 1);
+                System.arraycopy(live, 0, sorted.slots, 0, live.length);
+                sorted.size = live.length;
+                slotsById.clear();
+                for (int slot = 0; slot < live.length; slot++) {
+                    String id = live[slot].getId();
+                    int[] existing = slotsById.get(id);
+                    if (existing == null) {
+                        slotsById.put(id, new int[] {slot});
+                    } else {
+                        int[] more = Arrays.copyOf(existing, existing.length + 1);
+                        more[existing.length] = slot;
+                        slotsById.put(id, more);
+                    }
+                }
+                tombstoneCount = 0;
+                current = sorted;
+                snapshot = null;
+                version++;
+            }
+        }
+    }
+
+    /*
+     * Copies the live items into a new array and swaps it in. The copy is made
+     * without holding the write lock; removals and appends that happen meanwhile
+     * are carried over in the short locked swap step. Slot positions change, item
+     * ordinals (kept by MediaLibrary) do not.
+     */
+    public void compact() {
+        synchronized (compactionLock) {
+            long replacedBefore = replacements;
+            Generation old = current;
+            int oldSize = old.size;
+            long[] seen = new long[(oldSize + 63) >>> 6];
+            for (int word = 0; word < seen.length; word++) {
+                seen[word] = old.tombstones.get(word);
+            }
+            int[] remap = new int[oldSize];
+            int live = 0;
+            for (int slot = 0; slot < oldSize; slot++) {
+                boolean removed = (seen[slot >>> 6] & (1L << slot)) != 0;
+                remap[slot] = removed ? -1 : live++;
+            }
+            if (live == oldSize) {
+                return;
+            }
+            Generation next = new Generation(Math.max(MIN_CAPACITY, live + live / 2), layouts.incrementAndGet(), old.order);
+            for (int slot = 0; slot < oldSize; slot++) {
+                if (remap[slot] >= 0) {
+                    next.slots[remap[slot]] = old.slots[slot];
+                }
+            }
+            next.size = live;
+
+            synchronized (this) {
+                if (current != old) {
+                    // The array grew meanwhile; the next removal will schedule another try
+                    return;
+                }
+                if (replacements != replacedBefore) {
+                    // Items were replaced in place while copying: copy the references again
+                    for (int slot = 0; slot < oldSize; slot++) {
+                        if (remap[slot] >= 0) {
+                            next.slots[remap[slot]] = old.slots[slot];
+                        }
+                    }
+                }
+                int remaining = 0;
+                // Removals made while copying (slots >= oldSize are handled with the appends below)
+                for (int word = 0; word < seen.length; word++) {
+                    long added = old.tombstones.get(word) & ~seen[word];
+                    if (word == seen.length - 1 && (oldSize & 63) != 0) {
+                        added &= (1L << (oldSize & 63)) - 1;
+                    }
+                    while (added != 0) {
+                        int slot = (word << 6) + Long.numberOfTrailingZeros(added);
+                        added &= added - 1;
+                        next.markRemoved(remap[slot]);
+                        remaining++;
+                    }
+                }
+                // Appends made while copying
+                int tail = old.size;
+                Generation target = tail - oldSize + live > next.slots.length
+                        ? copyOf(next, tail - oldSize + live + MIN_CAPACITY) : next;
+                for (int slot = oldSize; slot < tail; slot++) {
+                    int moved = slot - oldSize + live;
+                    target.slots[moved] = old.slots[slot];
+                    if (!old.isLive(slot)) {
+                        target.markRemoved(moved);
+                        remaining++;
+                    }
+                }
+                for (int[] slots : slotsById.values()) {
+                    for (int i = 0; i < slots.length; i++) {
+                        slots[i] = slots[i] < oldSize ? remap[slots[i]] : slots[i] - oldSize + live;
+                    }
+                }
+                target.size = tail - oldSize + live;
+                tombstoneCount = remaining;
+                current = target;
+                snapshot = null;
+                version++;
+                compactions++;
+            }
+        }
+    }
+
+    private static Generation copyOf(Generation generation, int capacity) {
+        Generation bigger = new Generation(capacity, generation.layout, generation.order);
+        int size = generation.size;
+        System.arraycopy(generation.slots, 0, bigger.slots, 0, size);
+        for (int word = 0; word < (size + 63) >>> 6; word++) {
+            bigger.tombstones.set(word, generation.tombstones.get(word));
+        }
+        bigger.size = size;
+        return bigger;
+    }
+}
@@ -0,0 +1,123 @@
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+
+/**
+ * Rough retained-size arithmetic for the memory report (see MemoryFootprint).
+ *
+ * Sizes follow the usual 64-bit HotSpot layout: 12 byte object headers and 4 byte
+ * references with compressed oops (16 and 8 without), objects padded to 8 bytes,
+ * Latin-1 strings at one byte per char. Field packing is not modelled exactly, so
+ * expect estimates within a few percent, not exact numbers.
+ */
+public final class MemoryEstimator {
+    public static final int REFERENCE;
+    public static final int HEADER;
+    public static final int ARRAY_HEADER;
+
+    // Shallow instance sizes, computed once per class from its declared fields
+    private static final ClassValue<Long> SHALLOW_SIZES = new ClassValue<Long>() {
+        @Override
+        protected Long computeValue(Class<?> type) {
+            long size = HEADER;
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        size += fieldSize(field.getType());
+                    }
+                }
+            }
+            return align(size);
+        }
+    };
+
+    static {
+        boolean compressed = true;
+        try {
+            String value = ManagementFactory.getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class)
+                    .getVMOption("UseCompressedOops").getValue();
+            compressed = Boolean.parseBoolean(value);
+        } catch (RuntimeException | LinkageError e) {
+            // Not HotSpot: assume the common default
+        }
+        REFERENCE = compressed ? 4 : 8;
+        HEADER = compressed ? 12 : 16;
+        ARRAY_HEADER = compressed ? 16 : 24;
+    }
+
+    private MemoryEstimator() {
+    }
+
+    public static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    // Header plus declared instance fields of an object of this class (nothing it points to)
+    public static long shallowSize(Class<?> type) {
+        return SHALLOW_SIZES.get(type);
+    }
+
+    public static long referenceArray(int length) {
+        return align(ARRAY_HEADER + (long) length * REFERENCE);
+    }
+
+    public static long primitiveArray(int length, int elementBytes) {
+        return align(ARRAY_HEADER + (long) length * elementBytes);
+    }
+
+    // A String and its backing array (null counts as 0)
+    public static long string(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int bytesPerChar = 1;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 0xFF) {
+                bytesPerChar = 2;
+                break;
+            }
+        }
+        return shallowSize(String.class) + primitiveArray(value.length(), bytesPerChar);
+    }
+
+    // An ArrayList with the given capacity, not counting the elements
+    public static long arrayList(int capacity) {
+        return shallowSize(java.util.ArrayList.class) + referenceArray(capacity);
+    }
+
+    // A HashMap's table and entry objects, not counting keys and values
+    public static long hashMap(Map<?, ?> map) {
+        int size = map.size();
+        int table = 16;
+        while (table * 0.75 < size) {
+            table *= 2;
+        }
+        return shallowSize(java.util.HashMap.class) + referenceArray(table)
+                + (long) size * align(HEADER + 4 + 3L * REFERENCE);
+    }
+
+    // A media item with its strings, title search key (genre keys are shared) and lazy-field handle, if any
+    public static long media(Media media) {
+        long size = shallowSize(media.getClass())
+                + string(media.getId()) + string(media.getTitle()) + string(media.getGenre())
+                + primitiveArray(media.getTitleKey().length, 1);
+        return size + media.estimateDetailBytes();
+    }
+
+    private static long fieldSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        if (type == byte.class || type == boolean.class) {
+            return 1;
+        }
+        return REFERENCE;
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Estimated retained heap of one structure, broken down into named components
+ * (for example "items", "ordinals", "sorted views"). Built by the estimateMemory()
+ * methods of MediaLibrary, User and RecommendationScheduler; see MemoryEstimator.
+ */
+public class MemoryFootprint {
+    private final String name;
+    private final LinkedHashMap<String, Long> components = new LinkedHashMap<>();
+
+    public MemoryFootprint(String name) {
+        this.name = name;
+    }
+
+    public MemoryFootprint add(String component, long bytes) {
+        components.merge(component, bytes, Long::sum);
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Component name -> estimated bytes, in the order they were added
+    public Map<String, Long> getComponents() {
+        return new LinkedHashMap<>(components);
+    }
+
+    public long getTotalBytes() {
+        long total = 0;
+        for (long bytes : components.values()) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    // 1536 -> "1.5 KB"
+    public static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String[] units = {"KB", "MB", "GB", "TB"};
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", value, units[unit]);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(name).append(": ").append(formatBytes(getTotalBytes()));
+        for (Map.Entry<String, Long> entry : components.entrySet()) {
+            text.append("\n  - ").append(entry.getKey()).append(": ").append(formatBytes(entry.getValue()));
+        }
+        return text.toString();
+    }
+}
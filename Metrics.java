@@ -0,0 +1,117 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics is the process-wide registry for latency histograms and counters.
+ *
+ * Hot paths wrap their work in a Span: begin() starts the timer and a JFR
+ * HotPathEvent, end() records the latency in the operation's histogram and
+ * commits the event. snapshot() returns a consistent-enough copy of everything
+ * for reporting.
+ */
+public final class Metrics {
+    private static final ConcurrentHashMap<String, LatencyHistogram> timers = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * One timed execution of an operation
+     */
+    public static final class Span {
+        private final String operation;
+        private final long start;
+        private final HotPathEvent event;
+
+        private Span(String operation) {
+            this.operation = operation;
+            this.event = new HotPathEvent();
+            this.event.begin();
+            this.start = System.nanoTime();
+        }
+
+        // Stops the timer; 'items' is the number of results or records handled
+        public void end(int items) {
+            timer(operation).record(System.nanoTime() - start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = operation;
+                event.items = items;
+                event.commit();
+            }
+        }
+    }
+
+    public static Span begin(String operation) {
+        return new Span(operation);
+    }
+
+    public static LatencyHistogram timer(String name) {
+        return timers.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    public static void increment(String counter, long delta) {
+        counters.computeIfAbsent(counter, key -> new LongAdder()).add(delta);
+    }
+
+    public static long getCounter(String counter) {
+        LongAdder adder = counters.get(counter);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    public static void resetCounter(String counter) {
+        LongAdder adder = counters.get(counter);
+        if (adder != null) {
+            adder.reset();
+        }
+    }
+
+    // Copy of all histograms (as summaries) and counters, sorted by name
+    public static Snapshot snapshot() {
+        TreeMap<String, LatencyHistogram.Summary> timerSummaries = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : timers.entrySet()) {
+            timerSummaries.put(entry.getKey(), entry.getValue().summary());
+        }
+        TreeMap<String, Long> counterValues = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            counterValues.put(entry.getKey(), entry.getValue().sum());
+        }
+        return new Snapshot(timerSummaries, counterValues);
+    }
+
+    /**
+     * Point-in-time copy of all metrics
+     */
+    public static final class Snapshot {
+        private final TreeMap<String, LatencyHistogram.Summary> timers;
+        private final TreeMap<String, Long> counters;
+
+        Snapshot(TreeMap<String, LatencyHistogram.Summary> timers, TreeMap<String, Long> counters) {
+            this.timers = timers;
+            this.counters = counters;
+        }
+
+        public Map<String, LatencyHistogram.Summary> getTimers() {
+            return timers;
+        }
+
+        public Map<String, Long> getCounters() {
+            return counters;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            for (Map.Entry<String, LatencyHistogram.Summary> entry : timers.entrySet()) {
+                out.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            }
+            for (Map.Entry<String, Long> entry : counters.entrySet()) {
+                out.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            }
+            return out.toString();
+        }
+    }
+}
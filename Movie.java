@@ -7,37 +7,73 @@ import java.util.Objects;
  
 public class Movie extends Media implements Playable{
     private String director;  
+    // Undecoded director (lazy-record mode); cleared once director has been read.
+    // Volatile: a reader that sees it cleared also sees the decoded director.
+    private volatile LazyText lazyDirector;
 
     public Movie(String id, String title, String genre, double rating, int duration, String director) {
         super(id, title, genre, rating, duration);
         this.director = director;
     }
 
+    // Constructor for lazy-record mode: the director is decoded on first access
+    public Movie(String id, String title, String genre, double rating, int duration, LazyText director) {
+        super(id, title, genre, rating, duration);
+        this.lazyDirector = director;
+    }
+
     // Provides detailed movie information in a formatted string 
     //Overrides abstract method from Media class
     //returns  string with all movie details
 
     @Override
     public String getDisplayDetails() {
-        return "Movie: " + getTitle() + 
-               "Director: " + director + 
-               "Genre: " + getGenre() +
-               "Rating: " + getRating() + 
-               "Duration: " + getDuration() + " mins";
+        StringBuilder out = new StringBuilder(96);
+        appendDetails(out);
+        return out.toString();
+    }
+
+    @Override
+    public void appendDetails(StringBuilder out) {
+        out.append("Movie: ").append(getTitle())
+           .append("Director: ").append(getAuthor())
+           .append("Genre: ").append(getGenre())
+           .append("Rating: ").append(getRating())
+           .append("Duration: ").append(getDuration()).append(" mins");
     }
 
     public String getAuthor() {
+        LazyText lazy = lazyDirector;
+        if (lazy != null) {
+            director = lazy.get();
+            lazyDirector = null;
+        }
         return director; 
     }
 
+    // The director string, or the handle to it while it is still lazy
+    @Override
+    long estimateDetailBytes() {
+        return MemoryEstimator.string(director)
+                + (lazyDirector != null ? MemoryEstimator.shallowSize(LazyText.class) : 0);
+    }
+
+    @Override
+    long detailHash() {
+        LazyText lazy = lazyDirector;
+        return lazy != null ? lazy.getTextHash() : detailHashOf(director);
+    }
+
     public void setdirector(String director) {
         this.director = director; 
+        this.lazyDirector = null;
     }
     
-    // Shows a summary like: "Inception [ID: M1, Genre: Sci-fi, Rating: 8.5, Duration: 148 min]"
+    // Shows a summary like: "Inception [ID: M1, Genre: Sci-fi, Rating: 8.5, Duration: 148 min], Director: Christopher Nolan"
     @Override
-    public String toString() {
-        return super.toString() + ", Director: " + director;
+    public void appendSummary(StringBuilder out) {
+        super.appendSummary(out);
+        out.append(", Director: ").append(getAuthor());
     }
     
    //Compares this User object with another object for equality.
@@ -50,17 +86,25 @@ public class Movie extends Media implements Playable{
    //4. Compares the String IDs using Strings equals() method
    //Note: This implementation is consistent with hashCode(), meaning:
    //If two Users are equal (same ID), they will have same hash code
+   //Lazy directors are only decoded when the two handles point at different bytes.
     @Override
     public boolean equals(Object obj) {
+        if (this == obj) return true;
         if (!super.equals(obj)) return false;
         Movie movie = (Movie) obj;
-        return director.equals(movie.director);
+        LazyText lazy = lazyDirector;
+        LazyText otherLazy = movie.lazyDirector;
+        if (lazy != null && otherLazy != null && lazy.sameText(otherLazy)) {
+            return true;
+        }
+        return getAuthor().equals(movie.getAuthor());
     }
     
     // Returns a unique number based on the ID Must match equals same ID means same hash code
+    // (the director is left out so hashing never decodes a lazy one; equal movies still share the ID)
     @Override
     public int hashCode() {
-        return Objects.hash(super.hashCode(), director);
+        return super.hashCode();
     }
      public void play() {
         System.out.println("Playing Movie: " + getTitle());
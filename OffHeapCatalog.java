@@ -0,0 +1,342 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * OffHeapCatalog stores media items outside the Java heap so that very large
+ * libraries do not pay the per-object cost of Media subclasses and their Strings.
+ *
+ * Every item is one fixed-width record in a direct ByteBuffer holding the numeric
+ * fields and offsets into a second direct buffer (the string arena) where all
+ * text is kept as length-prefixed UTF-8. Genres are interned into a small
+ * dictionary so genre filters compare ints instead of text.
+ *
+ * Search and filtering read the buffers directly. A Media object is only created
+ * (materialized) when a caller asks for a matching item. Reads use absolute
+ * buffer positions only, so a catalog that is no longer appended to can be read
+ * from several threads at once.
+ *
+ * MediaLibrary can keep a search index built with searchIndex(): the same records
+ * with only the title key as text, scanned by its searchByTitle/getMediaByGenre.
+ * That index is an addition to the library's Media objects, not a replacement;
+ * only a catalog used on its own (loadFromFile) keeps the items off the heap.
+ */
+public class OffHeapCatalog {
+
+    // Media type codes stored in the record
+    public static final int TYPE_SERIES = 1;
+    public static final int TYPE_DOCUMENTARY = 2;
+    public static final int TYPE_MOVIE = 3;
+
+    // Record layout (all offsets in bytes)
+    private static final int TYPE_OFFSET = 0;
+    private static final int DURATION_OFFSET = 4;
+    private static final int RATING_OFFSET = 8;
+    private static final int SEASONS_OFFSET = 16;
+    private static final int GENRE_CODE_OFFSET = 20;
+    private static final int ID_REF_OFFSET = 24;
+    private static final int TITLE_REF_OFFSET = 28;
+    private static final int EXTRA_REF_OFFSET = 32;
+    private static final int TITLE_KEY_REF_OFFSET = 36;
+    private static final int RECORD_BYTES = 40;
+
+    private static final int INITIAL_RECORDS = 1024;
+    private static final int INITIAL_ARENA_BYTES = 64 * 1024;
+
+    private ByteBuffer records;
+    private ByteBuffer arena;
+    private int size = 0;
+    private int arenaUsed = 0;
+    // False for search indexes: details (author, subject) are not stored, so get() is unavailable
+    private final boolean withDetails;
+
+    // Genre dictionary: code -> name (and its search key) and name -> code
+    private final ArrayList<String> genreNames = new ArrayList<>();
+    private final HashMap<String, Integer> genreCodes = new HashMap<>();
+    private final ArrayList<byte[]> genreKeys = new ArrayList<>();
+
+    public OffHeapCatalog() {
+        this(INITIAL_RECORDS);
+    }
+
+    public OffHeapCatalog(int expectedItems) {
+        this(expectedItems, true);
+    }
+
+    private OffHeapCatalog(int expectedItems, boolean withDetails) {
+        records = allocate(Math.max(1, expectedItems) * RECORD_BYTES);
+        arena = allocate(INITIAL_ARENA_BYTES);
+        this.withDetails = withDetails;
+    }
+
+    // Builds an off-heap copy of everything currently in the library
+    public static OffHeapCatalog fromLibrary(MediaLibrary library) {
+        List<Media> all = library.getAllMedia();
+        OffHeapCatalog catalog = new OffHeapCatalog(all.size());
+        for (Media m : all) {
+            catalog.append(m);
+        }
+        return catalog;
+    }
+
+    /*
+     * Search index over 'items': ordinal i is items.get(i). Only what searches read
+     * is stored (no ID, title or details text), so lazily loaded details are not
+     * decoded; get() is not supported.
+     */
+    static OffHeapCatalog searchIndex(List<Media> items) {
+        OffHeapCatalog catalog = new OffHeapCatalog(items.size(), false);
+        for (Media m : items) {
+            catalog.append(m);
+        }
+        return catalog;
+    }
+
+    /*
+     * Loads a media file straight into off-heap storage. Each parsed Media is only
+     * a short-lived temporary; nothing per item stays on the heap.
+     */
+    public static OffHeapCatalog loadFromFile(String filename) throws InvalidMediaDataException {
+        OffHeapCatalog catalog = new OffHeapCatalog();
+        MediaLibrary.readMediaFile(filename, catalog::append);
+        return catalog;
+    }
+
+    /*
+     * Appends a media item and returns its ordinal (position in the catalog).
+     * Throws IllegalArgumentException for media types the catalog cannot encode.
+     */
+    public int append(Media media) {
+        int type;
+        int seasons = 0;
+        String extra = "";
+        if (media instanceof Series) {
+            type = TYPE_SERIES;
+            seasons = ((Series) media).getNumberOfSeasons();
+        } else if (media instanceof Documentary) {
+            type = TYPE_DOCUMENTARY;
+            extra = withDetails ? ((Documentary) media).getSubject() : null;
+        } else if (media instanceof Movie) {
+            type = TYPE_MOVIE;
+            extra = withDetails ? ((Movie) media).getAuthor() : null;
+        } else {
+            throw new IllegalArgumentException("Unsupported media type: " + media.getClass().getName());
+        }
+
+        ensureRecordCapacity(size + 1);
+        int base = size * RECORD_BYTES;
+        records.putInt(base + TYPE_OFFSET, type);
+        records.putInt(base + DURATION_OFFSET, media.getDuration());
+        records.putDouble(base + RATING_OFFSET, media.getRating());
+        records.putInt(base + SEASONS_OFFSET, seasons);
+        records.putInt(base + GENRE_CODE_OFFSET, internGenre(media.getGenre()));
+        // Search indexes keep no text but the title key (the refs are never read, see get)
+        records.putInt(base + ID_REF_OFFSET, withDetails ? appendString(media.getId()) : -1);
+        records.putInt(base + TITLE_REF_OFFSET, withDetails ? appendString(media.getTitle()) : -1);
+        records.putInt(base + EXTRA_REF_OFFSET, withDetails ? appendString(extra == null ? "" : extra) : -1);
+        records.putInt(base + TITLE_KEY_REF_OFFSET, appendBytes(media.getTitleKey()));
+        return size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // ---- Primitive accessors: these never allocate ----
+
+    public int getType(int ordinal) {
+        return records.getInt(checkOrdinal(ordinal) * RECORD_BYTES + TYPE_OFFSET);
+    }
+
+    public int getDuration(int ordinal) {
+        return records.getInt(checkOrdinal(ordinal) * RECORD_BYTES + DURATION_OFFSET);
+    }
+
+    public double getRating(int ordinal) {
+        return records.getDouble(checkOrdinal(ordinal) * RECORD_BYTES + RATING_OFFSET);
+    }
+
+    public int getGenreCode(int ordinal) {
+        return records.getInt(checkOrdinal(ordinal) * RECORD_BYTES + GENRE_CODE_OFFSET);
+    }
+
+    // Returns the dictionary code of a genre, or -1 if no item has that genre
+    public int genreCode(String genre) {
+        Integer code = genreCodes.get(genre);
+        return code == null ? -1 : code;
+    }
+
+    public String genreName(int code) {
+        return genreNames.get(code);
+    }
+
+    /*
+     * Checks whether the title of the given item contains the needle, ignoring case
+     * and accents. The needle must already be a search key (see encodeNeedle).
+     */
+    public boolean titleContains(int ordinal, byte[] needle) {
+        int ref = records.getInt(checkOrdinal(ordinal) * RECORD_BYTES + TITLE_KEY_REF_OFFSET);
+        int length = arena.getInt(ref);
+        int start = ref + 4;
+        int last = length - needle.length;
+        for (int i = 0; i <= last; i++) {
+            int j = 0;
+            while (j < needle.length && arena.get(start + i + j) == needle[j]) {
+                j++;
+            }
+            if (j == needle.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Normalizes a query once so it can be matched against many records (see SearchKey)
+    public static byte[] encodeNeedle(String text) {
+        return SearchKey.of(text);
+    }
+
+    // ---- Materialization ----
+
+    // Creates a Media object for the item at the given ordinal
+    public Media get(int ordinal) {
+        if (!withDetails) {
+            throw new UnsupportedOperationException("Search indexes do not store item details");
+        }
+        int base = checkOrdinal(ordinal) * RECORD_BYTES;
+        String id = readString(records.getInt(base + ID_REF_OFFSET));
+        String title = readString(records.getInt(base + TITLE_REF_OFFSET));
+        String genre = genreNames.get(records.getInt(base + GENRE_CODE_OFFSET));
+        double rating = records.getDouble(base + RATING_OFFSET);
+        int duration = records.getInt(base + DURATION_OFFSET);
+        switch (records.getInt(base + TYPE_OFFSET)) {
+            case TYPE_SERIES:
+                return new Series(id, title, genre, rating, duration, records.getInt(base + SEASONS_OFFSET));
+            case TYPE_DOCUMENTARY:
+                return new Documentary(id, title, genre, rating, duration, readString(records.getInt(base + EXTRA_REF_OFFSET)));
+            default:
+                return new Movie(id, title, genre, rating, duration, readString(records.getInt(base + EXTRA_REF_OFFSET)));
+        }
+    }
+
+    /*
+     * Same contract as MediaLibrary.searchByTitle: case-insensitive "contains" match.
+     * Only matching items are materialized.
+     */
+    public ArrayList<Media> searchByTitle(String title) {
+        byte[] needle = encodeNeedle(title);
+        ArrayList<Media> results = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (titleContains(i, needle)) {
+                results.add(get(i));
+            }
+        }
+        return results;
+    }
+
+    // Same contract as MediaLibrary.getMediaByGenre: case- and accent-insensitive genre equality
+    public ArrayList<Media> getMediaByGenre(String genre) {
+        ArrayList<Media> results = new ArrayList<>();
+        boolean[] wanted = genresMatching(genre);
+        if (wanted == null) {
+            return results;
+        }
+        for (int i = 0; i < size; i++) {
+            if (wanted[getGenreCode(i)]) {
+                results.add(get(i));
+            }
+        }
+        return results;
+    }
+
+    /*
+     * Genre codes whose name matches 'genre' (case- and accent-insensitive), as a
+     * lookup table indexed by code, or null if no item has a matching genre
+     */
+    boolean[] genresMatching(String genre) {
+        boolean[] wanted = new boolean[genreNames.size()];
+        boolean any = false;
+        byte[] key = SearchKey.of(genre);
+        for (int code = 0; code < genreNames.size(); code++) {
+            if (SearchKey.equals(genreKeys.get(code), key)) {
+                wanted[code] = true;
+                any = true;
+            }
+        }
+        return any ? wanted : null;
+    }
+
+    // ---- Internal helpers ----
+
+    private int internGenre(String genre) {
+        Integer code = genreCodes.get(genre);
+        if (code == null) {
+            code = genreNames.size();
+            genreNames.add(genre);
+            genreKeys.add(SearchKey.of(genre));
+            genreCodes.put(genre, code);
+        }
+        return code;
+    }
+
+    // Writes a length-prefixed UTF-8 string into the arena and returns its offset
+    private int appendString(String value) {
+        return appendBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Writes length-prefixed bytes into the arena and returns their offset
+    private int appendBytes(byte[] bytes) {
+        ensureArenaCapacity((long) arenaUsed + 4 + bytes.length);
+        int ref = arenaUsed;
+        arena.putInt(ref, bytes.length);
+        arena.put(ref + 4, bytes);
+        arenaUsed += 4 + bytes.length;
+        return ref;
+    }
+
+    private String readString(int ref) {
+        int length = arena.getInt(ref);
+        byte[] bytes = new byte[length];
+        arena.get(ref + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void ensureRecordCapacity(int items) {
+        long needed = (long) items * RECORD_BYTES;
+        if (needed > records.capacity()) {
+            records = grow(records, needed, size * RECORD_BYTES);
+        }
+    }
+
+    private void ensureArenaCapacity(long needed) {
+        if (needed > arena.capacity()) {
+            arena = grow(arena, needed, arenaUsed);
+        }
+    }
+
+    // Doubles a buffer (up to the 2 GB ByteBuffer limit) and copies the used bytes
+    private static ByteBuffer grow(ByteBuffer old, long needed, int used) {
+        long capacity = Math.max(needed, (long) old.capacity() * 2);
+        if (needed > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Off-heap catalog segment exceeds 2 GB");
+        }
+        ByteBuffer bigger = allocate((int) Math.min(capacity, Integer.MAX_VALUE));
+        ByteBuffer source = old.duplicate();
+        source.position(0).limit(used);
+        bigger.put(source);
+        bigger.position(0);
+        return bigger;
+    }
+
+    private static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    private int checkOrdinal(int ordinal) {
+        if (ordinal < 0 || ordinal >= size) {
+            throw new IndexOutOfBoundsException("Ordinal " + ordinal + " outside catalog of size " + size);
+        }
+        return ordinal;
+    }
+}
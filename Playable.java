@@ -1,5 +1,14 @@
-
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
 
 public interface Playable {
     void play();
+
+    // ID of the item; its asset is found under it (see PlaybackEngine)
+    String getId();
+
+    // Streams this item's asset through the engine into the sink (see PlaybackEngine)
+    default PlaybackSession play(PlaybackEngine engine, WritableByteChannel sink) throws IOException {
+        return engine.start(getId(), sink);
+    }
 }
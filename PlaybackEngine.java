@@ -0,0 +1,94 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * PlaybackEngine streams local media assets (files named <mediaId>.asset in the
+ * asset directory) into sinks, one PlaybackSession per stream.
+ *
+ * Each session sends the file in fixed-size memory-mapped segments, so bytes go
+ * from the page cache to the sink without being copied through the heap. A
+ * read-ahead task maps and pages in the next segments while the current one is
+ * being sent, and the sender writes those same buffers.
+ *
+ * Sessions run on virtual threads when the runtime has them (Java 21+), so thousands
+ * of concurrent sessions are cheap. Older runtimes (this build targets Java 17) fall
+ * back to a cached pool of daemon platform threads: two per active session, each
+ * with its own stack, so concurrent sessions are limited by OS threads and memory.
+ */
+public class PlaybackEngine implements Closeable {
+    public static final int DEFAULT_SEGMENT_BYTES = 256 * 1024;
+    public static final int DEFAULT_READ_AHEAD_SEGMENTS = 4;
+    private static final String ASSET_SUFFIX = ".asset";
+
+    private final Path assetDirectory;
+    private final int segmentBytes;
+    private final int readAheadSegments;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+
+    public PlaybackEngine(Path assetDirectory) {
+        this(assetDirectory, DEFAULT_SEGMENT_BYTES, DEFAULT_READ_AHEAD_SEGMENTS);
+    }
+
+    public PlaybackEngine(Path assetDirectory, int segmentBytes, int readAheadSegments) {
+        if (segmentBytes < 1 || readAheadSegments < 1) {
+            throw new IllegalArgumentException("segmentBytes and readAheadSegments must be at least 1");
+        }
+        this.assetDirectory = assetDirectory;
+        this.segmentBytes = segmentBytes;
+        this.readAheadSegments = readAheadSegments;
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "playback");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Path assetFor(String mediaId) {
+        return assetDirectory.resolve(mediaId + ASSET_SUFFIX);
+    }
+
+    public boolean hasAsset(String mediaId) {
+        return Files.isRegularFile(assetFor(mediaId));
+    }
+
+    /*
+     * Starts streaming the asset of the media item with this ID into the sink and
+     * returns immediately. The sink is not closed by the session. Throws IOException
+     * if the asset cannot be opened.
+     */
+    public PlaybackSession start(String mediaId, WritableByteChannel sink) throws IOException {
+        PlaybackSession session = new PlaybackSession(mediaId, assetFor(mediaId), sink, segmentBytes, readAheadSegments);
+        session.start(executor);
+        return session;
+    }
+
+    // True when sessions run on virtual threads
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    // Stops accepting sessions and interrupts the running ones
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() if this runtime has it (looked up reflectively to compile on 17)
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
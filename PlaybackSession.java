@@ -0,0 +1,203 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.*;
+
+/**
+ * One playback stream started by PlaybackEngine.
+ *
+ * Two tasks cooperate through a bounded queue of mapped segments:
+ * - the read-ahead task maps each upcoming segment and loads it into memory, staying
+ *   at most readAheadSegments ahead of the sender;
+ * - the sender writes those same loaded buffers into the sink, so the file is read
+ *   once and the bytes never pass through the heap.
+ * Whenever the sender has to wait for a segment that is not loaded yet, that counts as
+ * a stall. Throughput and stalls are kept per session and the totals go to Metrics.
+ *
+ * Each task blocks its thread while it waits. On virtual threads that is cheap; on
+ * the Java 17 fallback every running session holds two platform threads (each with
+ * its own stack, 1 MB reserved by default), so a few thousand concurrent sessions
+ * need a few GB of address space and as many OS threads.
+ */
+public class PlaybackSession implements Closeable {
+    // Marks the end of the file in the read-ahead queue
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final String mediaId;
+    private final FileChannel file;
+    private final WritableByteChannel sink;
+    private final int segmentBytes;
+    private final long size;
+    private final BlockingQueue<ByteBuffer> loaded;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+    private volatile Future<?> readAhead;
+    private volatile Future<?> sender;
+
+    private volatile long bytesSent = 0;
+    private volatile int stalls = 0;
+    private volatile long stallNanos = 0;
+    private volatile long startNanos;
+    private volatile long endNanos;
+
+    PlaybackSession(String mediaId, Path asset, WritableByteChannel sink, int segmentBytes, int readAheadSegments) throws IOException {
+        this.mediaId = mediaId;
+        this.file = FileChannel.open(asset, StandardOpenOption.READ);
+        this.sink = sink;
+        this.segmentBytes = segmentBytes;
+        this.size = file.size();
+        this.loaded = new ArrayBlockingQueue<>(readAheadSegments);
+    }
+
+    void start(ExecutorService executor) {
+        startNanos = System.nanoTime();
+        try {
+            readAhead = executor.submit(this::readAhead);
+            sender = executor.submit(this::send);
+        } catch (RejectedExecutionException e) {
+            finish(e);
+        }
+    }
+
+    // Pages in segment after segment, blocking while readAheadSegments are waiting to be sent
+    private void readAhead() {
+        try {
+            for (long position = 0; position < size; position += segmentBytes) {
+                MappedByteBuffer segment = file.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(segmentBytes, size - position));
+                segment.load();
+                loaded.put(segment);
+            }
+            loaded.put(END);
+        } catch (IOException e) {
+            finish(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void send() {
+        try {
+            while (true) {
+                ByteBuffer segment = loaded.poll();
+                if (segment == null) {
+                    long waitStart = System.nanoTime();
+                    segment = loaded.take();
+                    if (segment != END) {
+                        stalls++;
+                        stallNanos += System.nanoTime() - waitStart;
+                    }
+                }
+                if (segment == END) {
+                    break;
+                }
+                Metrics.Span span = Metrics.begin("playback.segment");
+                long sent = 0;
+                while (segment.hasRemaining()) {
+                    sent += sink.write(segment);
+                }
+                bytesSent += sent;
+                span.end(1);
+            }
+            finish(null);
+        } catch (IOException e) {
+            finish(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            finish(new CancellationException("Playback of " + mediaId + " was cancelled"));
+        }
+    }
+
+    private synchronized void finish(Throwable failure) {
+        if (done.isDone()) {
+            return;
+        }
+        endNanos = System.nanoTime();
+        Future<?> reader = readAhead;
+        if (reader != null) {
+            reader.cancel(true);
+        }
+        // On failure the sender may be blocked on the queue for a segment that never comes
+        Future<?> writer = sender;
+        if (failure != null && writer != null) {
+            writer.cancel(true);
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            // Nothing was written through this channel; closing cannot lose data
+        }
+        Metrics.increment("playback.bytes", bytesSent);
+        Metrics.increment("playback.stalls", stalls);
+        if (failure == null) {
+            done.complete(null);
+        } else {
+            done.completeExceptionally(failure);
+        }
+    }
+
+    // Waits until the whole asset was sent; rethrows what stopped it otherwise
+    public void await() throws IOException, InterruptedException {
+        try {
+            done.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Playback of " + mediaId + " failed", e.getCause());
+        }
+    }
+
+    // Stops the session; await() then fails with a CancellationException
+    @Override
+    public void close() {
+        finish(new CancellationException("Playback of " + mediaId + " was cancelled"));
+    }
+
+    public String getMediaId() {
+        return mediaId;
+    }
+
+    public boolean isDone() {
+        return done.isDone();
+    }
+
+    public long getSizeBytes() {
+        return size;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    // Times the sender had to wait because read-ahead had not loaded the next segment
+    public int getStallCount() {
+        return stalls;
+    }
+
+    public long getStallMillis() {
+        return stallNanos / 1_000_000;
+    }
+
+    public long getElapsedMillis() {
+        long end = done.isDone() ? endNanos : System.nanoTime();
+        return (end - startNanos) / 1_000_000;
+    }
+
+    public double getThroughputBytesPerSecond() {
+        long end = done.isDone() ? endNanos : System.nanoTime();
+        long nanos = Math.max(1, end - startNanos);
+        return bytesSent * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "PlaybackSession [ID: " + mediaId + ", Sent: " + bytesSent + "/" + size + " bytes, Throughput: "
+                + String.format("%.1f", getThroughputBytesPerSecond() / (1024 * 1024)) + " MB/s, Stalls: " + stalls
+                + " (" + getStallMillis() + " ms)]";
+    }
+}
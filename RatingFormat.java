@@ -0,0 +1,21 @@
+/**
+ * Allocation-free number formatting for media output.
+ * appendOneDecimal produces the same text as String.format("%.1f", value) for
+ * ratings (0.0 - 10.0, half-up rounding), but always uses '.' as the decimal
+ * separator and writes straight into the caller's buffer.
+ */
+public final class RatingFormat {
+
+    private RatingFormat() {
+    }
+
+    // Appends the value rounded to one decimal place, e.g. 8.46 -> "8.5"
+    public static StringBuilder appendOneDecimal(StringBuilder out, double value) {
+        long tenths = Math.round(value * 10);
+        if (tenths < 0) {
+            out.append('-');
+            tenths = -tenths;
+        }
+        return out.append(tenths / 10).append('.').append((char) ('0' + tenths % 10));
+    }
+}
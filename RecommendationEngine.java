@@ -7,7 +7,18 @@ import java.util.*;
 public class RecommendationEngine {
     
 
-    private static int totalRecommendationsGenerated = 0;
+    // Metrics counter that replaces the old static total (see getTotalRecommendationsGenerated)
+    private static final String GENERATED_COUNTER = "recommendations.generated";
+    // Budgeted requests that ran out of time or candidates (see generateRecommendationsWithin)
+    private static final String PARTIAL_COUNTER = "recommendations.partial";
+    // Budgeted requests read the clock once per this many candidates
+    private static final int DEADLINE_CHECK_INTERVAL = 64;
+    
+    // Concurrent identical requests share one computation (see SingleFlight)
+    private static final SingleFlight<RequestKey, ArrayList<Media>> coalescer = new SingleFlight<>();
+    
+    // Optional trending ranking used for users without watch history
+    private static TrendingEngine trendingEngine = null;
     
     
      // Generates personalized recommendations for a user based on their watch history
@@ -15,15 +26,61 @@ public class RecommendationEngine {
           // If user has no watch history, recommend highest rated items
            // Generate recommendations based on genre preferences
              // Sort recommendations by rating (highest first) using ArrayList's sort method
+     // Identical requests running at the same time (same library, filters, User object and
+     // history version, or any cold-start user) are coalesced into one library scan.
     
-    public static ArrayList<Media> generateRecommendations(User user, MediaLibrary library, 
+    public static ArrayList<Media> generateRecommendations(User user, MediaLibrary library,
                                                      double minRating, int maxDuration) {
+        return generate(user, library, minRating, maxDuration, true);
+    }
+
+    /*
+     * Same result as generateRecommendations, but not counted as generated: for lists
+     * computed ahead of time (RecommendationScheduler counts them when it serves them,
+     * see recordServed). Only reads the library's item snapshot and published index
+     * (collectByRating, getTopRated), so it may run on a background thread while the
+     * library is being changed.
+     */
+    static ArrayList<Media> computeRecommendations(User user, MediaLibrary library,
+                                                   double minRating, int maxDuration) {
+        return generate(user, library, minRating, maxDuration, false);
+    }
+
+    // Counts a precomputed personalized list handed to a user
+    static void recordServed(int count) {
+        Metrics.increment(GENERATED_COUNTER, count);
+    }
+
+    private static ArrayList<Media> generate(User user, MediaLibrary library, double minRating,
+                                             int maxDuration, boolean counted) {
         if (user == null || library == null) {
             return new ArrayList<>();
         }
-        
-        ArrayList<Media> recommendations = new ArrayList<>();
+
+        Metrics.Span span = Metrics.begin("recommendations.generate");
+        long historyVersion = user.getHistoryVersion();
         ArrayList<Media> watchHistory = user.getWatchHistory();
+        if (watchHistory.isEmpty()) {
+            ArrayList<Media> coldStart = new ArrayList<>(coalescer.execute(new RequestKey(library, null, 0, minRating, maxDuration),
+                    () -> getColdStartMedia(library, minRating, maxDuration, 5)));
+            span.end(coldStart.size());
+            return coldStart;
+        }
+        
+        ArrayList<Media> shared = coalescer.execute(
+                new RequestKey(library, user, historyVersion, minRating, maxDuration),
+                () -> scanRecommendations(watchHistory, library, minRating, maxDuration));
+        if (counted) {
+            Metrics.increment(GENERATED_COUNTER, shared.size());
+        }
+        span.end(shared.size());
+        // Every caller gets its own copy; the shared list is never handed out
+        return new ArrayList<>(shared);
+    }
+    
+    // The actual scan behind generateRecommendations
+    private static ArrayList<Media> scanRecommendations(ArrayList<Media> watchHistory, MediaLibrary library,
+                                                     double minRating, int maxDuration) {
         ArrayList<String> watchedIds = new ArrayList<>();
         ArrayList<String> userGenres = new ArrayList<>();
         
@@ -36,23 +93,257 @@ public class RecommendationEngine {
             }
         }
         
-
-        if (watchHistory.isEmpty()) {
-            return getTopRatedMedia(library, minRating, maxDuration, 5);
+        // Every match is wanted, so a filter and sort beats walking the rating index
+        // (same order as the stable sort by rating; see MediaLibrary.collectByRating)
+        return library.collectByRating(minRating, maxDuration,
+                media -> shouldRecommend(media, watchedIds, userGenres, minRating, maxDuration));
+    }
+    
+    /**
+     * Identity of a recommendation request for coalescing. The library is compared
+     * by identity; userId is null for cold-start requests, which do not depend on the user.
+     */
+    private static final class RequestKey {
+        private final MediaLibrary library;
+        // Compared by identity: two User objects with the same ID can hold different histories
+        private final User user;
+        private final long historyVersion;
+        private final double minRating;
+        private final int maxDuration;
+        
+        RequestKey(MediaLibrary library, User user, long historyVersion, double minRating, int maxDuration) {
+            this.library = library;
+            this.user = user;
+            this.historyVersion = historyVersion;
+            this.minRating = minRating;
+            this.maxDuration = maxDuration;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof RequestKey)) return false;
+            RequestKey other = (RequestKey) obj;
+            return library == other.library && user == other.user
+                    && historyVersion == other.historyVersion
+                    && Double.compare(minRating, other.minRating) == 0 && maxDuration == other.maxDuration;
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(library), System.identityHashCode(user), historyVersion, minRating, maxDuration);
+        }
+    }
+    
+    /**
+     * Paged recommendations: returns the items at positions [offset, offset + limit)
+     * of the generateRecommendations result without building the full list.
+     * Candidates are walked in rating order (from the (duration, rating) index when
+     * it is current), so the walk stops after offset + limit matches.
+     * Pass the returned token to the token variant to get the next page.
+     */
+    public static MediaPage generateRecommendations(User user, MediaLibrary library,
+                                                     double minRating, int maxDuration,
+                                                     int offset, int limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Offset and limit must not be negative");
+        }
+        if (user == null || library == null) {
+            return new MediaPage(new ArrayList<>(), null);
         }
         
-       
-        for (Media media : library.getAllMedia()) {
-            if (shouldRecommend(media, watchedIds, userGenres, minRating, maxDuration)) {
-                recommendations.add(media);
+        ArrayList<Media> watchHistory = user.getWatchHistory();
+        if (watchHistory.isEmpty()) {
+            ArrayList<Media> coldStart = getColdStartMedia(library, minRating, maxDuration, 5);
+            ArrayList<Media> items = new ArrayList<>();
+            for (int i = offset; i < coldStart.size() && items.size() < limit; i++) {
+                items.add(coldStart.get(i));
             }
+            return new MediaPage(items, offset + limit < coldStart.size() ? MediaPage.tokenFor(offset + limit) : null);
         }
         
-      
-        recommendations.sort((m1, m2) -> Double.compare(m2.getRating(), m1.getRating()));
+        ArrayList<String> userGenres = new ArrayList<>();
+        for (Media watchedItem : watchHistory) {
+            if (!userGenres.contains(watchedItem.getGenre())) {
+                userGenres.add(watchedItem.getGenre());
+            }
+        }
         
-        totalRecommendationsGenerated += recommendations.size();
-        return recommendations;
+        // Candidates arrive highest rated first (ties in library order), so the
+        // page is complete as soon as offset + limit matches have been seen
+        int keep = offset + limit;
+        Iterator<Media> candidates = library.iterateByRating(minRating, maxDuration,
+                media -> userGenres.contains(media.getGenre()));
+        ArrayList<Media> items = new ArrayList<>();
+        int matched = 0;
+        boolean more = false;
+        while (candidates.hasNext()) {
+            Media media = candidates.next();
+            if (!shouldRecommend(media, null, userGenres, minRating, maxDuration)) {
+                continue;
+            }
+            if (matched == keep) {
+                more = true;
+                break;
+            }
+            if (matched++ >= offset) {
+                items.add(media);
+            }
+        }
+        Metrics.increment(GENERATED_COUNTER, items.size());
+        return new MediaPage(items, more ? MediaPage.tokenFor(offset + limit) : null);
+    }
+    
+    public static MediaPage generateRecommendations(User user, MediaLibrary library,
+                                                     double minRating, int maxDuration,
+                                                     String continuationToken, int limit) {
+        return generateRecommendations(user, library, minRating, maxDuration,
+                                       MediaPage.positionOf(continuationToken), limit);
+    }
+    
+    /**
+     * Anytime recommendations for callers with a latency budget: returns up to 'limit'
+     * items, examining candidates highest rated first until the time budget or the
+     * candidate budget runs out (0 means no budget of that kind). Whatever has been found
+     * by then is returned, flagged partial; it is always a prefix of the full
+     * generateRecommendations result. The clock is checked every DEADLINE_CHECK_INTERVAL
+     * candidates. Right after a catalog change, while the rating index is being rebuilt,
+     * the items are scanned in library order under the same budgets instead (see
+     * scanWithin); a partial result is then the best of the items scanned so far.
+     */
+    public static RecommendationResult generateRecommendationsWithin(User user, MediaLibrary library,
+                                                                     double minRating, int maxDuration, int limit,
+                                                                     long timeBudgetMillis, long maxCandidates) {
+        if (limit < 0 || timeBudgetMillis < 0 || maxCandidates < 0) {
+            throw new IllegalArgumentException("Limit and budgets must not be negative");
+        }
+        long start = System.nanoTime();
+        if (user == null || library == null) {
+            return new RecommendationResult(new ArrayList<>(), true, 0, 0);
+        }
+
+        Metrics.Span span = Metrics.begin("recommendations.generateWithin");
+        ArrayList<Media> watchHistory = user.getWatchHistory();
+        if (watchHistory.isEmpty()) {
+            // Cold start is a handful of precomputed/indexed items: always complete, no candidates examined
+            ArrayList<Media> coldStart = getColdStartMedia(library, minRating, maxDuration, Math.min(limit, 5));
+            span.end(coldStart.size());
+            return new RecommendationResult(coldStart, true, 0, System.nanoTime() - start);
+        }
+
+        ArrayList<String> userGenres = new ArrayList<>();
+        for (Media watchedItem : watchHistory) {
+            if (!userGenres.contains(watchedItem.getGenre())) {
+                userGenres.add(watchedItem.getGenre());
+            }
+        }
+
+        boolean timed = timeBudgetMillis > 0;
+        long deadline = start + timeBudgetMillis * 1_000_000L;
+        long candidateBudget = maxCandidates == 0 ? Long.MAX_VALUE : maxCandidates;
+        DurationRatingIndex index = library.getCurrentDurationRatingIndex();
+        if (index == null) {
+            RecommendationResult result = scanWithin(library.getAllMedia(), userGenres, minRating, maxDuration,
+                                                     limit, timed, deadline, candidateBudget, start);
+            span.end(result.getItems().size());
+            return result;
+        }
+        Iterator<Media> candidates = index.iterator(minRating, maxDuration);
+        ArrayList<Media> items = new ArrayList<>(Math.min(limit, 64));
+        long examined = 0;
+        boolean complete = true;
+        while (items.size() < limit && candidates.hasNext()) {
+            if (examined == candidateBudget
+                    || (timed && examined % DEADLINE_CHECK_INTERVAL == 0 && System.nanoTime() - deadline >= 0)) {
+                complete = false;
+                break;
+            }
+            Media media = candidates.next();
+            examined++;
+            if (shouldRecommend(media, null, userGenres, minRating, maxDuration)) {
+                items.add(media);
+            }
+        }
+        if (!complete) {
+            Metrics.increment(PARTIAL_COUNTER, 1);
+        }
+        Metrics.increment(GENERATED_COUNTER, items.size());
+        span.end(items.size());
+        return new RecommendationResult(items, complete, examined, System.nanoTime() - start);
+    }
+
+    /*
+     * Budgeted fallback while the rating index is stale: walks the items in library
+     * order, keeping the best 'limit' matches so far (ties in library order), instead
+     * of sorting every candidate before the budget is even checked. A completed scan
+     * gives the same items as the index walk.
+     */
+    private static RecommendationResult scanWithin(List<Media> all, ArrayList<String> userGenres,
+                                                   double minRating, int maxDuration, int limit,
+                                                   boolean timed, long deadline, long candidateBudget, long start) {
+        ArrayList<Media> items = new ArrayList<>(Math.min(limit, 64));
+        if (limit == 0) {
+            return new RecommendationResult(items, true, 0, System.nanoTime() - start);
+        }
+        long examined = 0;
+        boolean complete = true;
+        for (int i = 0; i < all.size(); i++) {
+            if (examined == candidateBudget
+                    || (timed && i % DEADLINE_CHECK_INTERVAL == 0 && System.nanoTime() - deadline >= 0)) {
+                complete = false;
+                break;
+            }
+            Media media = all.get(i);
+            if (media.getRating() < minRating || media.getDuration() > maxDuration) {
+                continue;
+            }
+            examined++;
+            if (!userGenres.contains(media.getGenre())
+                    || (items.size() == limit && media.getRating() <= items.get(limit - 1).getRating())) {
+                continue;
+            }
+            int position = items.size();
+            while (position > 0 && items.get(position - 1).getRating() < media.getRating()) {
+                position--;
+            }
+            items.add(position, media);
+            if (items.size() > limit) {
+                items.remove(limit);
+            }
+        }
+        if (!complete) {
+            Metrics.increment(PARTIAL_COUNTER, 1);
+        }
+        Metrics.increment(GENERATED_COUNTER, items.size());
+        return new RecommendationResult(items, complete, examined, System.nanoTime() - start);
+    }
+
+    /**
+     * Lazy stream of recommendations in the same order as generateRecommendations.
+     * Candidates come from the (duration, rating) index already in rating order, so
+     * nothing is sorted and a limit() stops the walk early (right after a catalog
+     * change the candidates are sorted once until the index is rebuilt).
+     */
+    public static java.util.stream.Stream<Media> streamRecommendations(User user, MediaLibrary library,
+                                                                     double minRating, int maxDuration) {
+        if (user == null || library == null) {
+            return java.util.stream.Stream.empty();
+        }
+        ArrayList<Media> watchHistory = user.getWatchHistory();
+        if (watchHistory.isEmpty()) {
+            return getColdStartMedia(library, minRating, maxDuration, 5).stream();
+        }
+        ArrayList<String> userGenres = new ArrayList<>();
+        for (Media watchedItem : watchHistory) {
+            if (!userGenres.contains(watchedItem.getGenre())) {
+                userGenres.add(watchedItem.getGenre());
+            }
+        }
+        Iterator<Media> candidates = library.iterateByRating(minRating, maxDuration,
+                media -> userGenres.contains(media.getGenre()));
+        return java.util.stream.StreamSupport.stream(
+                        Spliterators.spliteratorUnknownSize(candidates, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .filter(media -> shouldRecommend(media, null, userGenres, minRating, maxDuration));
     }
     
     /**
@@ -69,44 +360,164 @@ public class RecommendationEngine {
         return userGenres.contains(media.getGenre());
     }
     
+    /**
+     * Recommendations for users with no watch history: trending items first (served
+     * from the trending engine's precomputed list), topped up with top-rated items
+     */
+    private static ArrayList<Media> getColdStartMedia(MediaLibrary library, double minRating,
+                                               int maxDuration, int limit) {
+        TrendingEngine trending = trendingEngine;
+        if (trending == null) {
+            return getTopRatedMedia(library, minRating, maxDuration, limit);
+        }
+        
+        ArrayList<Media> result = new ArrayList<>();
+        for (Media media : trending.getTrending(trending.getTopK())) {
+            if (result.size() < limit && media.getRating() >= minRating && media.getDuration() <= maxDuration) {
+                result.add(media);
+            }
+        }
+        if (result.size() < limit) {
+            for (Media media : getTopRatedMedia(library, minRating, maxDuration, limit)) {
+                if (result.size() < limit && !result.contains(media)) {
+                    result.add(media);
+                }
+            }
+        }
+        return result;
+    }
+    
     /**
      * Gets top-rated media items for users with no watch history
      */
     private static ArrayList<Media> getTopRatedMedia(MediaLibrary library, double minRating, 
                                               int maxDuration, int limit) {
-        ArrayList<Media> topRated = new ArrayList<>();
-        
-        for (Media media : library.getAllMedia()) {
-            if (media.getRating() >= minRating && media.getDuration() <= maxDuration) {
-                topRated.add(media);
+        // Answered from the (duration, rating) index when it is current (see MediaLibrary.getTopRated)
+        return library.getTopRated(minRating, maxDuration, limit);
+    }
+    
+    /**
+     * Off-heap variant of generateRecommendations with the same filtering and ordering.
+     * Candidates are filtered on the catalog's primitive fields and genre codes,
+     * so only the items that end up in the result are materialized.
+     */
+    public static ArrayList<Media> generateRecommendations(User user, OffHeapCatalog catalog,
+                                                     double minRating, int maxDuration) {
+        if (user == null || catalog == null) {
+            return new ArrayList<>();
+        }
+
+        ArrayList<Media> watchHistory = user.getWatchHistory();
+        if (watchHistory.isEmpty()) {
+            return getTopRatedMedia(catalog, minRating, maxDuration, 5);
+        }
+
+        // Translate the user's genres into catalog genre codes once
+        boolean[] userGenres = new boolean[Math.max(1, catalogGenreCount(catalog, watchHistory))];
+        for (Media watchedItem : watchHistory) {
+            int code = catalog.genreCode(watchedItem.getGenre());
+            if (code >= 0) {
+                userGenres[code] = true;
             }
         }
-        
-        // Sort using ArrayList's built-in sort method (highest rating first)
-        topRated.sort((m1, m2) -> Double.compare(m2.getRating(), m1.getRating()));
-        
-        // Return top 'limit' items without using subList
+
+        ArrayList<Media> recommendations = new ArrayList<>();
+        for (int i = 0; i < catalog.size(); i++) {
+            int code = catalog.getGenreCode(i);
+            if (code < userGenres.length && userGenres[code]
+                    && catalog.getRating(i) >= minRating && catalog.getDuration(i) <= maxDuration) {
+                recommendations.add(catalog.get(i));
+            }
+        }
+
+        recommendations.sort((m1, m2) -> Double.compare(m2.getRating(), m1.getRating()));
+
+        Metrics.increment(GENERATED_COUNTER, recommendations.size());
+        return recommendations;
+    }
+
+    // Highest genre code among the user's genres plus one (sizes the lookup table)
+    private static int catalogGenreCount(OffHeapCatalog catalog, ArrayList<Media> watchHistory) {
+        int max = -1;
+        for (Media watchedItem : watchHistory) {
+            max = Math.max(max, catalog.genreCode(watchedItem.getGenre()));
+        }
+        return max + 1;
+    }
+
+    /**
+     * Off-heap variant of getTopRatedMedia: keeps the best 'limit' ordinals in a
+     * small array instead of collecting and sorting every candidate
+     */
+    private static ArrayList<Media> getTopRatedMedia(OffHeapCatalog catalog, double minRating,
+                                              int maxDuration, int limit) {
+        if (limit <= 0) {
+            return new ArrayList<>();
+        }
+        int[] best = new int[limit];
+        int count = 0;
+
+        for (int i = 0; i < catalog.size(); i++) {
+            double rating = catalog.getRating(i);
+            if (rating < minRating || catalog.getDuration(i) > maxDuration) {
+                continue;
+            }
+            if (count == limit && rating <= catalog.getRating(best[count - 1])) {
+                continue;
+            }
+            // Insertion into the sorted (highest first) array of the best ordinals
+            int pos = count < limit ? count++ : count - 1;
+            while (pos > 0 && catalog.getRating(best[pos - 1]) < rating) {
+                best[pos] = best[pos - 1];
+                pos--;
+            }
+            best[pos] = i;
+        }
+
         ArrayList<Media> result = new ArrayList<>();
-        int count = Math.min(limit, topRated.size());
         for (int i = 0; i < count; i++) {
-            result.add(topRated.get(i));
+            result.add(catalog.get(best[i]));
         }
         return result;
     }
+
+    /**
+     * Installs the trending engine used for cold-start recommendations (null disables it).
+     * The engine must also be registered with User.addWatchListener to receive watches.
+     */
+    public static void setTrendingEngine(TrendingEngine engine) {
+        trendingEngine = engine;
+    }
     
     /**
      * Static method to get total recommendations generated across all users
      * Total number of recommendations generated
      */
     public static int getTotalRecommendationsGenerated() {
-        return totalRecommendationsGenerated;
+        return (int) Metrics.getCounter(GENERATED_COUNTER);
+    }
+    
+    /**
+     * Number of recommendation requests that were answered by sharing another
+     * request's in-flight computation instead of scanning the library again
+     */
+    public static long getCoalescedRequestCount() {
+        return coalescer.getDeduplicated();
+    }
+    
+    /**
+     * Number of recommendation requests that went through coalescing
+     */
+    public static long getCoalescableRequestCount() {
+        return coalescer.getRequests();
     }
     
     /**
      * Static method to reset the recommendation counter (for testing purposes)
      */
     public static void resetRecommendationCounter() {
-        totalRecommendationsGenerated = 0;
+        Metrics.resetCounter(GENERATED_COUNTER);
+        coalescer.resetCounters();
     }
     
     /**
@@ -0,0 +1,52 @@
+import java.util.ArrayList;
+
+/**
+ * Result of a budgeted recommendation request (see
+ * RecommendationEngine.generateRecommendationsWithin).
+ *
+ * Candidates are examined highest rated first, so the items are always the best
+ * matches in the part of the catalog that was examined, in the same order as
+ * generateRecommendations. A partial result stopped at its time or candidate budget;
+ * a complete one examined every candidate or filled its limit.
+ */
+public class RecommendationResult {
+    private final ArrayList<Media> items;
+    private final boolean complete;
+    private final long candidatesExamined;
+    private final long elapsedNanos;
+
+    public RecommendationResult(ArrayList<Media> items, boolean complete, long candidatesExamined, long elapsedNanos) {
+        this.items = items;
+        this.complete = complete;
+        this.candidatesExamined = candidatesExamined;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public ArrayList<Media> getItems() {
+        return items;
+    }
+
+    // True when the items are exactly what an unbudgeted request would have returned
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public boolean isPartial() {
+        return !complete;
+    }
+
+    // Candidates (items passing the rating and duration filter) looked at
+    public long getCandidatesExamined() {
+        return candidatesExamined;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "RecommendationResult [Items: " + items.size() + ", " + (complete ? "complete" : "partial") +
+               ", Examined: " + candidatesExamined + ", Time: " + String.format("%.3f", elapsedNanos / 1e6) + " ms]";
+    }
+}
@@ -0,0 +1,281 @@
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RecommendationScheduler precomputes recommendations for recently active users
+ * so that reads do not run the RecommendationEngine on the request path.
+ *
+ * - A user becomes active by asking for recommendations; at most maxActiveUsers
+ *   are tracked (least recently used ones are dropped).
+ * - When an active user watches something, or the catalog changes, their list is
+ *   recomputed in the background on a bounded worker pool. Catalog changes are
+ *   debounced so a bulk load causes one refresh, not one per item.
+ * - getRecommendations serves the precomputed list while it is up to date, or
+ *   while it is younger than maxStalenessMillis; otherwise it computes inline.
+ *   Cold-start lists follow the trending ranking, which other users' watches change
+ *   without bumping any version here, so they never count as up to date for longer
+ *   than maxStalenessMillis.
+ *
+ * Register the scheduler with User.addWatchListener and MediaLibrary.addCatalogListener
+ * (start() does both).
+ *
+ * Refreshes run on worker threads while the library may be changing. They go through
+ * RecommendationEngine.computeRecommendations, which only reads the library's
+ * immutable item snapshot and its published rating index, never the ID or sorted
+ * indexes the mutating thread updates in place. Background work is not counted as
+ * generated recommendations; a list counts when it is served to a personalized user.
+ */
+public class RecommendationScheduler implements WatchListener, CatalogListener, Closeable {
+    private static final long CATALOG_DEBOUNCE_MILLIS = 200;
+
+    /**
+     * Precomputed recommendations for one user and the filter they last used
+     */
+    private static class Entry {
+        final User user;
+        final double minRating;
+        final int maxDuration;
+        final AtomicBoolean refreshQueued = new AtomicBoolean(false);
+        volatile ArrayList<Media> recommendations;
+        // Whether the list was computed from a watch history (cold-start lists are not counted)
+        volatile boolean personalized;
+        volatile long computedAt;
+        volatile long historyVersion = -1;
+        volatile long catalogVersion = -1;
+
+        Entry(User user, double minRating, int maxDuration) {
+            this.user = user;
+            this.minRating = minRating;
+            this.maxDuration = maxDuration;
+        }
+    }
+
+    private final MediaLibrary library;
+    private final int maxActiveUsers;
+    private final long maxStalenessMillis;
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService timer;
+    private final AtomicLong catalogVersion = new AtomicLong();
+    private final AtomicBoolean catalogRefreshQueued = new AtomicBoolean(false);
+    // userId -> entry, in access order so the eldest is the least recently active
+    private final LinkedHashMap<String, Entry> active;
+
+    // Counters for monitoring
+    private final AtomicLong servedPrecomputed = new AtomicLong();
+    private final AtomicLong computedInline = new AtomicLong();
+    private final AtomicLong backgroundRefreshes = new AtomicLong();
+
+    public RecommendationScheduler(MediaLibrary library, int workerThreads, int maxActiveUsers,
+                                   long maxStalenessMillis) {
+        this.library = library;
+        this.maxActiveUsers = maxActiveUsers;
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.active = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > RecommendationScheduler.this.maxActiveUsers;
+            }
+        };
+        ThreadFactory daemon = runnable -> {
+            Thread thread = new Thread(runnable, "recommendation-refresh");
+            thread.setDaemon(true);
+            return thread;
+        };
+        // Bounded queue: when it is full the refresh is dropped and the next read computes inline
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, maxActiveUsers)), daemon,
+                (task, pool) -> ((RefreshTask) task).entry.refreshQueued.set(false));
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemon);
+    }
+
+    // Registers the scheduler for watch and catalog events
+    public RecommendationScheduler start() {
+        User.addWatchListener(this);
+        library.addCatalogListener(this);
+        return this;
+    }
+
+    /*
+     * Returns recommendations for the user, from the precomputed list when it is fresh
+     * enough. The returned list is a copy the caller may modify.
+     */
+    public ArrayList<Media> getRecommendations(User user, double minRating, int maxDuration) {
+        Entry entry;
+        synchronized (active) {
+            entry = active.get(user.getUserId());
+            if (entry == null || entry.user != user || entry.minRating != minRating || entry.maxDuration != maxDuration) {
+                entry = new Entry(user, minRating, maxDuration);
+                active.put(user.getUserId(), entry);
+            }
+        }
+        ArrayList<Media> precomputed = entry.recommendations;
+        if (precomputed != null && (isCurrent(entry) || System.currentTimeMillis() - entry.computedAt <= maxStalenessMillis)) {
+            servedPrecomputed.incrementAndGet();
+            if (!isCurrent(entry)) {
+                queueRefresh(entry);
+            }
+            return served(entry, precomputed);
+        }
+        computedInline.incrementAndGet();
+        return served(entry, compute(entry));
+    }
+
+    // The copy handed to the caller, counted like a generateRecommendations result
+    private static ArrayList<Media> served(Entry entry, ArrayList<Media> recommendations) {
+        if (entry.personalized) {
+            RecommendationEngine.recordServed(recommendations.size());
+        }
+        return new ArrayList<>(recommendations);
+    }
+
+    @Override
+    public void mediaWatched(User user, Media media, long timestamp) {
+        Entry entry;
+        synchronized (active) {
+            // Watching also counts as activity, so the access-ordered get() is what we want
+            entry = active.get(user.getUserId());
+        }
+        if (entry != null && entry.user == user) {
+            queueRefresh(entry);
+        }
+    }
+
+    @Override
+    public void mediaAdded(Media media) {
+        catalogChanged();
+    }
+
+    @Override
+    public void mediaRemoved(Media media) {
+        catalogChanged();
+    }
+
+    @Override
+    public void batchAdded(List<Media> added, List<Media> replaced) {
+        catalogChanged();
+    }
+
+    public long getServedPrecomputed() {
+        return servedPrecomputed.get();
+    }
+
+    public long getComputedInline() {
+        return computedInline.get();
+    }
+
+    public long getBackgroundRefreshes() {
+        return backgroundRefreshes.get();
+    }
+
+    // Estimated bytes of the precomputed lists and their entries (items belong to the library)
+    public long estimateMemory() {
+        ArrayList<Entry> entries;
+        synchronized (active) {
+            entries = new ArrayList<>(active.values());
+        }
+        long bytes = MemoryEstimator.hashMap(active)
+                + entries.size() * MemoryEstimator.align(MemoryEstimator.HEADER + 2L * MemoryEstimator.REFERENCE);
+        for (Entry entry : entries) {
+            bytes += MemoryEstimator.shallowSize(Entry.class) + MemoryEstimator.shallowSize(AtomicBoolean.class);
+            ArrayList<Media> recommendations = entry.recommendations;
+            if (recommendations != null) {
+                bytes += MemoryEstimator.arrayList(recommendations.size());
+            }
+        }
+        return bytes;
+    }
+
+    public int getActiveUserCount() {
+        synchronized (active) {
+            return active.size();
+        }
+    }
+
+    @Override
+    public void close() {
+        User.removeWatchListener(this);
+        library.removeCatalogListener(this);
+        timer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    // Catalog changed: bump the version and schedule one debounced refresh of everyone
+    private void catalogChanged() {
+        catalogVersion.incrementAndGet();
+        if (catalogRefreshQueued.compareAndSet(false, true)) {
+            try {
+                timer.schedule(() -> {
+                    catalogRefreshQueued.set(false);
+                    ArrayList<Entry> entries;
+                    synchronized (active) {
+                        entries = new ArrayList<>(active.values());
+                    }
+                    for (Entry entry : entries) {
+                        queueRefresh(entry);
+                    }
+                }, CATALOG_DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                catalogRefreshQueued.set(false);   // closed
+            }
+        }
+    }
+
+    private void queueRefresh(Entry entry) {
+        if (entry.refreshQueued.compareAndSet(false, true)) {
+            workers.execute(new RefreshTask(entry));
+        }
+    }
+
+    /**
+     * Background recomputation of one entry
+     */
+    private class RefreshTask implements Runnable {
+        final Entry entry;
+
+        RefreshTask(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public void run() {
+            entry.refreshQueued.set(false);
+            backgroundRefreshes.incrementAndGet();
+            try {
+                compute(entry);
+            } catch (RuntimeException e) {
+                // Leave the entry stale: the next read computes inline
+                Metrics.increment("recommendations.refreshFailures", 1);
+            }
+        }
+    }
+
+    private boolean isCurrent(Entry entry) {
+        return entry.historyVersion == entry.user.getHistoryVersion()
+                && entry.catalogVersion == catalogVersion.get()
+                && (entry.personalized || System.currentTimeMillis() - entry.computedAt <= maxStalenessMillis);
+    }
+
+    private ArrayList<Media> compute(Entry entry) {
+        // Read the versions first: a change during the computation leaves the entry stale
+        long history = entry.user.getHistoryVersion();
+        long catalog = catalogVersion.get();
+        boolean personalized = entry.user.getWatchCount() > 0;
+        ArrayList<Media> result = RecommendationEngine.computeRecommendations(
+                entry.user, library, entry.minRating, entry.maxDuration);
+        synchronized (entry) {
+            // Never replace a result computed from newer data
+            if (history < entry.historyVersion || catalog < entry.catalogVersion) {
+                return result;
+            }
+            entry.recommendations = result;
+            entry.personalized = personalized;
+            entry.computedAt = System.currentTimeMillis();
+            entry.historyVersion = history;
+            entry.catalogVersion = catalog;
+        }
+        return result;
+    }
+}
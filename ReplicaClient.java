@@ -0,0 +1,326 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * ReplicaClient keeps a read-only MediaLibrary in step with a writer's ChangeFeed.
+ *
+ * - On first connect it asks for a snapshot, replaces the local catalog with it and
+ *   then applies the records that follow. The snapshot arrives in chunks and is
+ *   applied once its SNAPSHOT_END frame is in; a snapshot cut off by a disconnect
+ *   is dropped.
+ * - When the connection drops it reconnects with backoff and resumes after the last
+ *   sequence it applied; the feed sends a fresh snapshot if it no longer has the
+ *   records in between.
+ * - Records are applied idempotently (adds are upserts, removes of missing IDs are
+ *   ignored), so overlap between a snapshot and the records after it is harmless.
+ * - Adds inside a bulk-load bracket are buffered and applied with one
+ *   MediaLibrary.addBatch call, so a replica rebuilds its sorted views once per bulk
+ *   load rather than once per item. Buffered adds do not count as applied (for
+ *   getAppliedSequence, awaitSequence and lag) until that call has run.
+ *
+ * Lag is the number of records the replica has yet to apply (from the latest
+ * sequence seen, including heartbeats) and the age of the last applied record.
+ * The replica library should only be changed through this client.
+ */
+public class ReplicaClient implements Closeable {
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+    // Drop the connection if nothing, not even a heartbeat, arrives for this long
+    private static final int READ_TIMEOUT_MILLIS = (int) (ChangeFeed.HEARTBEAT_MILLIS * 5);
+
+    private final MediaLibrary library;
+    private final int port;
+    private volatile long appliedSequence = -1;
+    private volatile long latestSequence = -1;
+    private volatile long appliedWriterMillis = 0;
+    private volatile long snapshots = 0;
+    private volatile long reconnects = 0;
+    private volatile boolean closed = false;
+    private volatile Socket socket;
+    private final Thread thread;
+
+    // Adds buffered inside a bulk-load bracket (only touched by the replication thread)
+    private ArrayList<Media> bulkAdds;
+    // Sequence and writer time of the last record buffered in bulkAdds (-1 if none)
+    private long bufferedSequence = -1;
+    private long bufferedWriterMillis = 0;
+    // Items of a snapshot still being received (only touched by the replication thread)
+    private ArrayList<Media> snapshotItems;
+
+    private ReplicaClient(MediaLibrary library, int port) {
+        this.library = library;
+        this.port = port;
+        this.thread = new Thread(this::run, "replica-" + port);
+        this.thread.setDaemon(true);
+    }
+
+    // Starts replicating the feed on the local port into 'library'
+    public static ReplicaClient start(MediaLibrary library, int port) {
+        ReplicaClient client = new ReplicaClient(library, port);
+        client.thread.start();
+        return client;
+    }
+
+    public MediaLibrary getLibrary() {
+        return library;
+    }
+
+    // Sequence of the last record applied (-1 before the first snapshot)
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    // Latest sequence the writer has reported
+    public long getLatestKnownSequence() {
+        return latestSequence;
+    }
+
+    public long getLagRecords() {
+        return Math.max(0, latestSequence - appliedSequence);
+    }
+
+    // Age of the newest applied change, or 0 when fully caught up (or nothing is applied yet)
+    public long getLagMillis() {
+        if (getLagRecords() == 0 || appliedWriterMillis == 0) {
+            return 0;
+        }
+        return Math.max(0, System.currentTimeMillis() - appliedWriterMillis);
+    }
+
+    public long getSnapshotCount() {
+        return snapshots;
+    }
+
+    public long getReconnectCount() {
+        return reconnects;
+    }
+
+    /*
+     * Waits until the replica has applied 'sequence'. Returns false if that did not
+     * happen within timeoutMillis.
+     */
+    public boolean awaitSequence(long sequence, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (this) {
+            while (appliedSequence < sequence) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // The replication thread exits either way
+            }
+        }
+        thread.interrupt();
+    }
+
+    private void run() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        while (!closed) {
+            try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                socket = s;
+                s.setSoTimeout(READ_TIMEOUT_MILLIS);
+                s.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(s.getOutputStream());
+                out.writeLong(appliedSequence);
+                out.flush();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+                backoff = MIN_BACKOFF_MILLIS;
+                while (!closed) {
+                    readRecord(in);
+                }
+            } catch (IOException e) {
+                // Connection refused or dropped: retry below
+            }
+            // A bracket cut off by a disconnect is not resumed; apply what arrived
+            flushBulkAdds();
+            snapshotItems = null;
+            if (closed) {
+                break;
+            }
+            reconnects++;
+            Metrics.increment("replica.reconnects", 1);
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                break;
+            }
+            backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+        }
+    }
+
+    private void readRecord(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 17 || length > ChangeFeed.MAX_FRAME_BYTES) {
+            throw new IOException("Bad change feed frame length " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+        long sequence = record.readLong();
+        long writerMillis = record.readLong();
+        byte op = record.readByte();
+        if (sequence > latestSequence || op == ChangeFeed.OP_SNAPSHOT_BEGIN) {
+            latestSequence = sequence;
+        }
+        if (op == ChangeFeed.OP_HEARTBEAT) {
+            return;
+        }
+        if (op == ChangeFeed.OP_SNAPSHOT_BEGIN || op == ChangeFeed.OP_SNAPSHOT_ITEMS) {
+            receiveSnapshot(op, record);
+            return; // Nothing is applied until SNAPSHOT_END
+        }
+        if (op != ChangeFeed.OP_SNAPSHOT_END && sequence <= appliedSequence) {
+            return; // Already applied before a reconnect
+        }
+        Metrics.Span span = Metrics.begin("replica.apply");
+        try {
+            apply(op, record);
+        } finally {
+            span.end(1);
+        }
+        if (bulkAdds != null) {
+            // Inside a bracket: applied once flushBulkAdds has added the buffered items
+            bufferedSequence = sequence;
+            bufferedWriterMillis = writerMillis;
+        } else {
+            markApplied(sequence, writerMillis);
+        }
+    }
+
+    private void markApplied(long sequence, long writerMillis) {
+        appliedWriterMillis = writerMillis;
+        synchronized (this) {
+            appliedSequence = sequence;
+            notifyAll();
+        }
+    }
+
+    private void apply(byte op, DataInputStream record) throws IOException {
+        switch (op) {
+            case ChangeFeed.OP_SNAPSHOT_END:
+                applySnapshot();
+                break;
+            case ChangeFeed.OP_ADD:
+                Media added = MediaCodec.read(record);
+                if (bulkAdds != null) {
+                    bulkAdds.add(added);
+                } else {
+                    upsert(added);
+                }
+                break;
+            case ChangeFeed.OP_UPDATE:
+                flushBulkAdds();
+                upsert(MediaCodec.read(record));
+                break;
+            case ChangeFeed.OP_REMOVE:
+                flushBulkAdds();
+                Media existing = library.getById(record.readUTF());
+                if (existing != null) {
+                    library.removeMedia(existing);
+                }
+                break;
+            case ChangeFeed.OP_BULK_START:
+                flushBulkAdds();
+                bulkAdds = new ArrayList<>();
+                break;
+            case ChangeFeed.OP_BULK_END:
+                flushBulkAdds();
+                break;
+            default:
+                throw new IOException("Unknown change feed record type " + op);
+        }
+    }
+
+    // Collects the items of the snapshot being streamed
+    private void receiveSnapshot(byte op, DataInputStream record) throws IOException {
+        int count = record.readInt();
+        if (op == ChangeFeed.OP_SNAPSHOT_BEGIN) {
+            // The snapshot contains whatever a cut-off bracket was still buffering
+            bulkAdds = null;
+            bufferedSequence = -1;
+            snapshotItems = new ArrayList<>(count);
+            return;
+        }
+        if (snapshotItems == null) {
+            throw new IOException("Snapshot items without SNAPSHOT_BEGIN");
+        }
+        for (int i = 0; i < count; i++) {
+            snapshotItems.add(MediaCodec.read(record));
+        }
+    }
+
+    // Replaces the local catalog with the received snapshot's items
+    private void applySnapshot() throws IOException {
+        ArrayList<Media> items = snapshotItems;
+        snapshotItems = null;
+        if (items == null) {
+            throw new IOException("SNAPSHOT_END without SNAPSHOT_BEGIN");
+        }
+        HashSet<String> ids = new HashSet<>(items.size() * 2);
+        for (Media media : items) {
+            ids.add(media.getId());
+        }
+        for (Media media : library.getAllMedia()) {
+            if (!ids.contains(media.getId())) {
+                library.removeMedia(media);
+            }
+        }
+        library.addBatch(items, true);
+        snapshots++;
+        Metrics.increment("replica.snapshots", 1);
+    }
+
+    private void upsert(Media media) {
+        if (!library.updateMedia(media)) {
+            library.addMedia(media);
+        }
+    }
+
+    // Applies the buffered adds and only then marks the records that carried them as applied
+    private void flushBulkAdds() {
+        ArrayList<Media> pending = bulkAdds;
+        bulkAdds = null;
+        if (pending != null && !pending.isEmpty()) {
+            library.addBatch(pending, true);
+        }
+        if (bufferedSequence > appliedSequence) {
+            markApplied(bufferedSequence, bufferedWriterMillis);
+        }
+        bufferedSequence = -1;
+    }
+
+    /*
+     * Replicates the feed on a local port and prints the catalog size and lag every second.
+     * Usage: java ReplicaClient <port>
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: java ReplicaClient <port>");
+            return;
+        }
+        ReplicaClient client = start(new MediaLibrary(), Integer.parseInt(args[0]));
+        while (true) {
+            Thread.sleep(1000);
+            System.out.println("Items: " + client.getLibrary().getAllMedia().size()
+                    + ", Applied: " + client.getAppliedSequence()
+                    + ", Lag: " + client.getLagRecords() + " records / " + client.getLagMillis() + " ms");
+        }
+    }
+}
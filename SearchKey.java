@@ -0,0 +1,111 @@
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SearchKey turns text into the normalized form used for case- and
+ * accent-insensitive matching, stored as UTF-8 bytes.
+ *
+ * - Compatibility decomposition (NFKD) splits accented letters and ligatures
+ *   ("\u00e9" -> "e" + accent, the "fi" ligature -> "fi"), and the accents are dropped.
+ * - Case is folded with Locale.ROOT (upper- then lower-case, so "\u00df" matches "ss"),
+ *   so results do not depend on the default locale: with a Turkish default locale
+ *   "TITLE".toLowerCase() has a dotless i, but its key is still "title".
+ *
+ * Media computes the keys for its title and genre once, when they are set, so a
+ * query only builds the key of the search text and then compares bytes. Pure ASCII
+ * text (most titles) skips the Normalizer entirely.
+ */
+public final class SearchKey {
+    // Keys of short, often repeated values such as genres are shared between items
+    private static final int SHARED_LIMIT = 4096;
+    private static final ConcurrentHashMap<String, byte[]> shared = new ConcurrentHashMap<>();
+
+    private SearchKey() {
+    }
+
+    // The normalized key of 'text' (a new array; callers must not modify keys they did not create)
+    public static byte[] of(String text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) >= 0x80) {
+                return fold(text).getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        byte[] key = new byte[length];
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            key[i] = (byte) (c >= 'A' && c <= 'Z' ? c + 32 : c);
+        }
+        return key;
+    }
+
+    // Like of(), but returns the same array for equal values (used for genres)
+    public static byte[] shared(String text) {
+        byte[] key = shared.get(text);
+        if (key == null) {
+            key = of(text);
+            if (shared.size() < SHARED_LIMIT) {
+                byte[] existing = shared.putIfAbsent(text, key);
+                if (existing != null) {
+                    key = existing;
+                }
+            }
+        }
+        return key;
+    }
+
+    public static boolean equals(byte[] key, byte[] other) {
+        return key == other || Arrays.equals(key, other);
+    }
+
+    /*
+     * Whether 'key' contains 'needle'. Both are UTF-8, so a byte match is always a
+     * match of whole characters.
+     */
+    public static boolean contains(byte[] key, byte[] needle) {
+        int n = needle.length;
+        if (n == 0) {
+            return true;
+        }
+        byte first = needle[0];
+        int last = key.length - n;
+        for (int i = 0; i <= last; i++) {
+            if (key[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < n && key[i + j] == needle[j]) {
+                j++;
+            }
+            if (j == n) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String fold(String text) {
+        String folded = stripMarks(text).toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+        // Folding can produce new decomposable characters (capital I with dot -> "i" + dot above)
+        return stripMarks(folded);
+    }
+
+    // NFKD, then drops the combining marks (accents) it split off
+    private static String stripMarks(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFKD);
+        StringBuilder out = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); ) {
+            int codePoint = decomposed.codePointAt(i);
+            int type = Character.getType(codePoint);
+            if (type != Character.NON_SPACING_MARK && type != Character.COMBINING_SPACING_MARK
+                    && type != Character.ENCLOSING_MARK) {
+                out.appendCodePoint(codePoint);
+            }
+            i += Character.charCount(codePoint);
+        }
+        return out.toString();
+    }
+}
@@ -23,10 +23,18 @@ public class Series extends Media implements Playable{
     public void play() {
         System.out.println("Playing series: " + getTitle());
     }
-// Implementing the abstract method of Media class and as well calling the toString method of super class(Media) and appending the new attribute to it.
+// Implementing the abstract method of Media class by reusing the summary of the super class(Media) and appending the new attribute to it.
     @Override
     public String getDisplayDetails() {
-        return super.toString() + ", Seasons: " + numberOfSeasons;
+        StringBuilder out = new StringBuilder(96);
+        appendDetails(out);
+        return out.toString();
+    }
+// Same text as getDisplayDetails, written straight into the caller's buffer
+    @Override
+    public void appendDetails(StringBuilder out) {
+        appendSummary(out);
+        out.append(", Seasons: ").append(numberOfSeasons);
     }
 
 }
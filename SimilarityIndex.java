@@ -0,0 +1,426 @@
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * SimilarityIndex answers "more like this" queries with an HNSW
+ * (Hierarchical Navigable Small World) approximate nearest-neighbour graph.
+ *
+ * Each media item is encoded as a small feature vector built from its genre,
+ * type, rating, duration and (for movies / documentaries) director or subject.
+ * The director or subject enters as a hash (Media.detailHash), which lazily loaded
+ * items carry from load time, so indexing never decodes their details.
+ * Vectors and graph links are kept in primitive arrays. A query walks the graph
+ * from the top layer down, so it visits roughly O(log n) nodes instead of
+ * scanning the whole catalog.
+ *
+ * As a CatalogListener the index follows the library: added items are inserted,
+ * removed items are marked deleted and left out of results. The listener calls
+ * only queue the change, so library writes never wait for graph inserts; a
+ * background thread applies the queue (a batch as one run), and a query first
+ * applies whatever is still queued.
+ */
+public class SimilarityIndex implements CatalogListener {
+
+    // Feature layout
+    private static final int GENRE_DIMS = 16;
+    private static final int TYPE_DIMS = 3;
+    private static final int CREATOR_DIMS = 8;     // director (Movie) or subject (Documentary)
+    public static final int DIMENSIONS = GENRE_DIMS + TYPE_DIMS + 2 + CREATOR_DIMS;
+    private static final float GENRE_WEIGHT = 1.0f;
+    private static final float TYPE_WEIGHT = 0.5f;
+    private static final float RATING_WEIGHT = 1.0f;
+    private static final float DURATION_WEIGHT = 0.5f;
+    private static final float CREATOR_WEIGHT = 0.8f;
+
+    // HNSW parameters
+    private final int maxLinks;          // M: links per node on upper layers
+    private final int maxLinksLayer0;    // 2M on the bottom layer
+    private final int efConstruction;
+    private final double levelFactor;
+    private final Random random = new Random(42);
+
+    // One daemon thread applies queued changes for every index
+    private static final ExecutorService UPDATER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "similarity-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A library change not applied to the graph yet
+     */
+    private static final class Change {
+        final Media media;
+        final boolean removed;
+
+        Change(Media media, boolean removed) {
+            this.media = media;
+            this.removed = removed;
+        }
+    }
+
+    // Changes in library order (guarded by pending itself, not by the index lock)
+    private final ArrayDeque<Change> pending = new ArrayDeque<>();
+    private final AtomicBoolean updateQueued = new AtomicBoolean(false);
+
+    // Node storage (index = node number)
+    private float[] vectors = new float[64 * DIMENSIONS];
+    private int[][][] links = new int[64][][];   // node -> layer -> [count, n1, n2, ...]
+    private final ArrayList<Media> nodes = new ArrayList<>();
+    private final HashMap<String, Integer> nodeById = new HashMap<>();
+    private final BitSet deleted = new BitSet();
+    private int entryPoint = -1;
+    private int topLayer = -1;
+
+    // "Visited" marks reused between searches (compare against visitEpoch)
+    private int[] visitedMarks = new int[64];
+    private int visitEpoch = 0;
+
+    public SimilarityIndex() {
+        this(16, 100);
+    }
+
+    public SimilarityIndex(int maxLinks, int efConstruction) {
+        this.maxLinks = maxLinks;
+        this.maxLinksLayer0 = maxLinks * 2;
+        this.efConstruction = efConstruction;
+        this.levelFactor = 1.0 / Math.log(maxLinks);
+    }
+
+    // Builds an index over the library and keeps it updated as the library changes
+    public static SimilarityIndex build(MediaLibrary library) {
+        SimilarityIndex index = new SimilarityIndex();
+        synchronized (index) {
+            for (Media media : library.getAllMedia()) {
+                index.add(media);
+            }
+        }
+        library.addCatalogListener(index);
+        return index;
+    }
+
+    @Override
+    public void mediaAdded(Media media) {
+        synchronized (pending) {
+            pending.addLast(new Change(media, false));
+        }
+        scheduleUpdate();
+    }
+
+    @Override
+    public void mediaRemoved(Media media) {
+        synchronized (pending) {
+            pending.addLast(new Change(media, true));
+        }
+        scheduleUpdate();
+    }
+
+    // Replaced items are handled by add (the old node is marked deleted)
+    @Override
+    public void batchAdded(List<Media> added, List<Media> replaced) {
+        synchronized (pending) {
+            for (Media media : added) {
+                pending.addLast(new Change(media, false));
+            }
+        }
+        scheduleUpdate();
+    }
+
+    public synchronized int size() {
+        applyPending();
+        return nodes.size() - deleted.cardinality();
+    }
+
+    private void scheduleUpdate() {
+        if (updateQueued.compareAndSet(false, true)) {
+            UPDATER.execute(() -> {
+                updateQueued.set(false);
+                applyPending();
+            });
+        }
+    }
+
+    // Applies the queued changes in order (on the updater thread, or in a query that needs them)
+    private synchronized void applyPending() {
+        while (true) {
+            Change change;
+            synchronized (pending) {
+                change = pending.pollFirst();
+            }
+            if (change == null) {
+                return;
+            }
+            if (change.removed) {
+                Integer node = nodeById.get(change.media.getId());
+                if (node != null) {
+                    deleted.set(node);
+                }
+            } else {
+                add(change.media);
+            }
+        }
+    }
+
+    private void add(Media media) {
+        Integer existing = nodeById.get(media.getId());
+        if (existing != null) {
+            deleted.set(existing);   // replaced: the old node stops being returned
+        }
+        insert(media);
+    }
+
+    /*
+     * Returns up to k items most similar to the given one, closest first.
+     * The item itself (same ID) is never part of the result.
+     */
+    public synchronized ArrayList<Media> similarTo(Media media, int k) {
+        ArrayList<Media> result = new ArrayList<>();
+        applyPending();
+        if (entryPoint < 0 || k <= 0) {
+            return result;
+        }
+        float[] query = new float[DIMENSIONS];
+        encode(media, query, 0);
+        int ef = Math.max(k + 1, 100);
+        int current = greedyDescend(query, 0, entryPoint);
+        long[] found = searchLayer(query, 0, current, ef);
+        for (int i = 0; i < found.length && result.size() < k; i++) {
+            int node = (int) found[i];
+            Media candidate = nodes.get(node);
+            if (!deleted.get(node) && !candidate.getId().equals(media.getId())) {
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+    // ---- Feature encoding ----
+
+    // Writes the feature vector of a media item into target[offset .. offset + DIMENSIONS)
+    static void encode(Media media, float[] target, int offset) {
+        Arrays.fill(target, offset, offset + DIMENSIONS, 0f);
+        target[offset + bucket(media.getGenre().toLowerCase(Locale.ROOT), GENRE_DIMS)] = GENRE_WEIGHT;
+        int typeIndex = media instanceof Series ? 0 : media instanceof Documentary ? 1 : 2;
+        target[offset + GENRE_DIMS + typeIndex] = TYPE_WEIGHT;
+        target[offset + GENRE_DIMS + TYPE_DIMS] = RATING_WEIGHT * (float) (media.getRating() / 10.0);
+        target[offset + GENRE_DIMS + TYPE_DIMS + 1] =
+                DURATION_WEIGHT * (float) (Math.log1p(Math.max(0, media.getDuration())) / Math.log1p(300));
+        long creator = media.detailHash();
+        if (creator != 0) {
+            target[offset + GENRE_DIMS + TYPE_DIMS + 2 + bucket(creator, CREATOR_DIMS)] = CREATOR_WEIGHT;
+        }
+    }
+
+    private static int bucket(String value, int buckets) {
+        return bucket(HyperLogLog.hash64(value), buckets);
+    }
+
+    private static int bucket(long hash, int buckets) {
+        return (int) ((hash >>> 1) % buckets);
+    }
+
+    // ---- HNSW ----
+
+    private void insert(Media media) {
+        int node = nodes.size();
+        ensureCapacity(node + 1);
+        nodes.add(media);
+        nodeById.put(media.getId(), node);
+        encode(media, vectors, node * DIMENSIONS);
+
+        int level = (int) (-Math.log(1.0 - random.nextDouble()) * levelFactor);
+        links[node] = new int[level + 1][];
+        for (int layer = 0; layer <= level; layer++) {
+            links[node][layer] = new int[1 + (layer == 0 ? maxLinksLayer0 : maxLinks)];
+        }
+        if (entryPoint < 0) {
+            entryPoint = node;
+            topLayer = level;
+            return;
+        }
+
+        float[] query = Arrays.copyOfRange(vectors, node * DIMENSIONS, (node + 1) * DIMENSIONS);
+        int current = greedyDescend(query, level + 1, entryPoint);
+        for (int layer = Math.min(level, topLayer); layer >= 0; layer--) {
+            long[] candidates = searchLayer(query, layer, current, efConstruction);
+            int limit = layer == 0 ? maxLinksLayer0 : maxLinks;
+            int[] selected = selectNeighbours(candidates, maxLinks);
+            for (int neighbour : selected) {
+                addLink(node, layer, neighbour, limit);
+                addLink(neighbour, layer, node, limit);
+            }
+            current = (int) candidates[0];
+        }
+        if (level > topLayer) {
+            topLayer = level;
+            entryPoint = node;
+        }
+    }
+
+    // Greedy walk from the top layer down to (but not including) 'stopLayer'
+    private int greedyDescend(float[] query, int stopLayer, int start) {
+        int current = start;
+        float currentDistance = distance(query, current);
+        for (int layer = topLayer; layer >= stopLayer; layer--) {
+            boolean improved = true;
+            while (improved) {
+                improved = false;
+                int[] list = links[current][layer];
+                for (int i = 1; i <= list[0]; i++) {
+                    float d = distance(query, list[i]);
+                    if (d < currentDistance) {
+                        currentDistance = d;
+                        current = list[i];
+                        improved = true;
+                    }
+                }
+            }
+        }
+        return current;
+    }
+
+    /*
+     * Best-first search on one layer. Returns up to 'ef' nodes sorted by distance;
+     * each long packs (distance bits << 32 | node) so ordering the longs orders by distance.
+     */
+    private long[] searchLayer(float[] query, int layer, int start, int ef) {
+        if (++visitEpoch == Integer.MAX_VALUE) {
+            Arrays.fill(visitedMarks, 0);
+            visitEpoch = 1;
+        }
+        PriorityQueue<Long> candidates = new PriorityQueue<>();                          // closest first
+        PriorityQueue<Long> results = new PriorityQueue<>(Collections.reverseOrder());   // farthest first
+        long first = pack(distance(query, start), start);
+        candidates.add(first);
+        results.add(first);
+        visitedMarks[start] = visitEpoch;
+
+        while (!candidates.isEmpty()) {
+            long closest = candidates.poll();
+            if (results.size() >= ef && unpackDistance(closest) > unpackDistance(results.peek())) {
+                break;
+            }
+            int[] list = links[(int) closest][layer];
+            for (int i = 1; i <= list[0]; i++) {
+                int neighbour = list[i];
+                if (visitedMarks[neighbour] == visitEpoch) {
+                    continue;
+                }
+                visitedMarks[neighbour] = visitEpoch;
+                float d = distance(query, neighbour);
+                if (results.size() < ef || d < unpackDistance(results.peek())) {
+                    long packed = pack(d, neighbour);
+                    candidates.add(packed);
+                    results.add(packed);
+                    if (results.size() > ef) {
+                        results.poll();
+                    }
+                }
+            }
+        }
+        long[] sorted = new long[results.size()];
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            sorted[i] = results.poll();
+        }
+        return sorted;
+    }
+
+    /*
+     * HNSW neighbour selection heuristic: walking the candidates closest first, keep
+     * one only if it is closer to the base node than to every neighbour already kept.
+     * This keeps links pointing in different directions, which matters when many
+     * items are near-duplicates (same genre and type). Remaining slots are filled
+     * with the closest skipped candidates.
+     */
+    private int[] selectNeighbours(long[] sortedCandidates, int m) {
+        int[] selected = new int[Math.min(m, sortedCandidates.length)];
+        int count = 0;
+        boolean[] skipped = new boolean[sortedCandidates.length];
+        for (int i = 0; i < sortedCandidates.length && count < selected.length; i++) {
+            int candidate = (int) sortedCandidates[i];
+            float toBase = unpackDistance(sortedCandidates[i]);
+            boolean keep = true;
+            for (int j = 0; j < count && keep; j++) {
+                keep = distance(vectors, candidate * DIMENSIONS, selected[j]) > toBase;
+            }
+            if (keep) {
+                selected[count++] = candidate;
+            } else {
+                skipped[i] = true;
+            }
+        }
+        for (int i = 0; i < sortedCandidates.length && count < selected.length; i++) {
+            if (skipped[i]) {
+                selected[count++] = (int) sortedCandidates[i];
+            }
+        }
+        return selected;
+    }
+
+    // Adds 'to' to the link list of 'from'; when full, re-selects the links with the heuristic
+    private void addLink(int from, int layer, int to, int limit) {
+        if (layer >= links[from].length) {
+            return;
+        }
+        int[] list = links[from][layer];
+        for (int i = 1; i <= list[0]; i++) {
+            if (list[i] == to) {
+                return;
+            }
+        }
+        if (list[0] < limit) {
+            list[++list[0]] = to;
+            return;
+        }
+        int base = from * DIMENSIONS;
+        long[] candidates = new long[list[0] + 1];
+        for (int i = 1; i <= list[0]; i++) {
+            candidates[i - 1] = pack(distance(vectors, base, list[i]), list[i]);
+        }
+        candidates[list[0]] = pack(distance(vectors, base, to), to);
+        Arrays.sort(candidates);
+        int[] selected = selectNeighbours(candidates, limit);
+        System.arraycopy(selected, 0, list, 1, selected.length);
+        list[0] = selected.length;
+    }
+
+    private float distance(float[] query, int node) {
+        float sum = 0f;
+        int base = node * DIMENSIONS;
+        for (int i = 0; i < DIMENSIONS; i++) {
+            float diff = query[i] - vectors[base + i];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    private float distance(float[] source, int sourceBase, int node) {
+        float sum = 0f;
+        int base = node * DIMENSIONS;
+        for (int i = 0; i < DIMENSIONS; i++) {
+            float diff = source[sourceBase + i] - vectors[base + i];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    private static long pack(float distance, int node) {
+        // Non-negative floats keep their order when compared as int bits
+        return ((long) Float.floatToIntBits(distance) << 32) | (node & 0xffffffffL);
+    }
+
+    private static float unpackDistance(long packed) {
+        return Float.intBitsToFloat((int) (packed >>> 32));
+    }
+
+    private void ensureCapacity(int count) {
+        if (count > links.length) {
+            int capacity = Math.max(count, links.length * 2);
+            links = Arrays.copyOf(links, capacity);
+            vectors = Arrays.copyOf(vectors, capacity * DIMENSIONS);
+            visitedMarks = Arrays.copyOf(visitedMarks, capacity);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * SingleFlight coalesces concurrent identical requests: while a computation for a
+ * key is running, other callers with an equal key wait for it and receive the
+ * same result instead of starting their own. Nothing is cached once the
+ * computation finishes; the next request for the key computes again.
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+
+    /*
+     * Runs the computation for the key, or joins one that is already running.
+     * Exceptions thrown by the computation reach every caller that shared it.
+     */
+    public V execute(K key, Supplier<V> computation) {
+        requests.incrementAndGet();
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            deduplicated.incrementAndGet();
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        executions.incrementAndGet();
+        try {
+            V value = computation.get();
+            mine.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    // Number of execute() calls
+    public long getRequests() {
+        return requests.get();
+    }
+
+    // Number of computations actually run
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    // Number of calls that shared another caller's computation
+    public long getDeduplicated() {
+        return deduplicated.get();
+    }
+
+    public void resetCounters() {
+        requests.set(0);
+        executions.set(0);
+        deduplicated.set(0);
+    }
+}
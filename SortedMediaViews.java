@@ -0,0 +1,218 @@
+import java.util.*;
+
+/**
+ * SortedMediaViews keeps one sorted list per MediaOrder so callers can walk the
+ * library in any order without re-sorting it.
+ *
+ * The views are immutable snapshots published through a volatile reference, so
+ * any thread can read them while the library changes. Single inserts and removals
+ * are only recorded (O(1) for the mutating thread) and merged into new views in
+ * one pass when the views are next read, or once enough of them have piled up.
+ * A bulk change (such as loading a file) drops the views; the library rebuilds
+ * them with Arrays.parallelSort when it is done, and reads in between sort a
+ * private copy.
+ *
+ * If a media item's title, rating or duration is changed after it was added,
+ * call MediaLibrary.refreshSortedViews() so the views are rebuilt.
+ */
+public class SortedMediaViews {
+    // Recorded changes merged by the mutating thread itself: at least this many, or 1/8 of the items
+    private static final int MIN_PENDING_CHANGES = 256;
+
+    /**
+     * One set of sorted arrays; never changed after it is published
+     */
+    private static final class Views {
+        final EnumMap<MediaOrder, Media[]> sorted = new EnumMap<>(MediaOrder.class);
+        final EnumMap<MediaOrder, List<Media>> lists = new EnumMap<>(MediaOrder.class);
+
+        void put(MediaOrder order, Media[] items) {
+            sorted.put(order, items);
+            lists.put(order, Collections.unmodifiableList(Arrays.asList(items)));
+        }
+
+        int size() {
+            return sorted.get(MediaOrder.TITLE).length;
+        }
+    }
+
+    // Published views, or null while a bulk change is under way
+    private volatile Views views = build(Collections.emptyList());
+    // Set when 'added' or 'removed' hold changes the published views lack
+    private volatile boolean dirty = false;
+    // Changes since 'views' was built, in no particular order (guarded by this)
+    private final ArrayList<Media> added = new ArrayList<>();
+    private final ArrayList<Media> removed = new ArrayList<>();
+
+    // Records an item for every view (ignored during a bulk change; the rebuild includes it)
+    public synchronized void add(Media media) {
+        if (views == null) {
+            return;
+        }
+        added.add(media);
+        changed();
+    }
+
+    // Records the removal of an item (matched with equals, the same instance first)
+    public synchronized void remove(Media media) {
+        if (views == null) {
+            return;
+        }
+        removed.add(media);
+        changed();
+    }
+
+    private void changed() {
+        dirty = true;
+        if (added.size() + removed.size() >= Math.max(MIN_PENDING_CHANGES, views.size() / 8)) {
+            merge();
+        }
+    }
+
+    // Estimated bytes of the built views (the items themselves belong to the library)
+    public long estimateMemory() {
+        Views current = views;
+        return current == null ? 0 : MediaOrder.values().length * MemoryEstimator.referenceArray(current.size());
+    }
+
+    // Drops the views for a bulk change; call rebuild when it is done
+    public synchronized void invalidate() {
+        views = null;
+        clearPending();
+    }
+
+    // Publishes views built from scratch; only call it from the thread that changes the library
+    public synchronized void rebuild(Collection<Media> allMedia) {
+        views = build(allMedia);
+        clearPending();
+    }
+
+    /*
+     * Returns a read-only view in the requested order, merging recorded changes
+     * first. The list never changes afterwards, so it can be iterated while the
+     * library changes; use listIterator(view.size()) to walk it backwards.
+     */
+    public List<Media> get(MediaOrder order, Collection<Media> allMedia) {
+        Views current = views;
+        if (dirty) {
+            synchronized (this) {
+                if (dirty && views != null) {
+                    merge();
+                }
+                current = views;
+            }
+        }
+        if (current == null) {
+            Media[] sorted = allMedia.toArray(new Media[0]);
+            Arrays.parallelSort(sorted, order.comparator());
+            return Collections.unmodifiableList(Arrays.asList(sorted));
+        }
+        return current.lists.get(order);
+    }
+
+    // Full rebuild: one parallel sort per ordering
+    private static Views build(Collection<Media> allMedia) {
+        Media[] items = allMedia.toArray(new Media[0]);
+        Views built = new Views();
+        for (MediaOrder order : MediaOrder.values()) {
+            Media[] sorted = items.clone();
+            Arrays.parallelSort(sorted, order.comparator());
+            built.put(order, sorted);
+        }
+        return built;
+    }
+
+    /*
+     * Publishes new views with the recorded changes: the added items are sorted,
+     * binary-searched into place and copied in with the runs between them, then
+     * every removal drops one matching item. Per ordering that is O(k log n)
+     * comparisons for k changes plus one O(n) array copy, instead of an O(n) shift
+     * per change.
+     */
+    private void merge() {
+        Views merged = new Views();
+        for (MediaOrder order : MediaOrder.values()) {
+            Comparator<Media> comparator = order.comparator();
+            Media[] base = views.sorted.get(order);
+            Media[] extra = added.toArray(new Media[0]);
+            Arrays.sort(extra, comparator);
+            Media[] items = new Media[base.length + extra.length];
+            int copied = 0;
+            for (int j = 0; j < extra.length; j++) {
+                int index = Arrays.binarySearch(base, copied, base.length, extra[j], comparator);
+                int position = index < 0 ? -index - 1 : index;
+                System.arraycopy(base, copied, items, copied + j, position - copied);
+                items[position + j] = extra[j];
+                copied = position;
+            }
+            System.arraycopy(base, copied, items, copied + extra.length, base.length - copied);
+
+            // In order too, so each search starts where the previous one ended
+            Media[] gone = removed.toArray(new Media[0]);
+            Arrays.sort(gone, comparator);
+            boolean[] dropped = new boolean[items.length];
+            int remaining = items.length;
+            int from = 0;
+            for (Media media : gone) {
+                int index = drop(items, dropped, from, media, comparator);
+                if (index >= 0) {
+                    remaining--;
+                    from = index;
+                }
+            }
+            Media[] kept = items;
+            if (remaining < items.length) {
+                kept = new Media[remaining];
+                int next = 0;
+                for (int k = 0; k < items.length; k++) {
+                    if (!dropped[k]) {
+                        kept[next++] = items[k];
+                    }
+                }
+            }
+            merged.put(order, kept);
+        }
+        views = merged;
+        clearPending();
+    }
+
+    /*
+     * Marks one item equal to 'media' as dropped, preferring the same instance, and
+     * returns where its run of equal items starts (-1 if there is none). Items
+     * before 'from' are smaller.
+     */
+    private static int drop(Media[] items, boolean[] dropped, int from, Media media, Comparator<Media> comparator) {
+        int index = Arrays.binarySearch(items, from, items.length, media, comparator);
+        if (index < 0) {
+            return -1;
+        }
+        // Duplicates of the same ID compare equal; find the first of the run
+        while (index > from && comparator.compare(items[index - 1], media) == 0) {
+            index--;
+        }
+        int match = -1;
+        for (int k = index; k < items.length && comparator.compare(items[k], media) == 0; k++) {
+            if (dropped[k] || !items[k].equals(media)) {
+                continue;
+            }
+            if (items[k] == media) {
+                match = k;
+                break;
+            }
+            if (match < 0) {
+                match = k;
+            }
+        }
+        if (match < 0) {
+            return -1;
+        }
+        dropped[match] = true;
+        return index;
+    }
+
+    private void clearPending() {
+        added.clear();
+        removed.clear();
+        dirty = false;
+    }
+}
@@ -0,0 +1,170 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * TrendingEngine ranks media by exponentially time-decayed watch counts and keeps
+ * a ready-made top-K list for users without any watch history.
+ *
+ * Decay uses "forward decay": an event at time t adds exp(lambda * (t - landmark)),
+ * so older events never have to be touched again; dividing by
+ * exp(lambda * (now - landmark)) gives the decayed count at any moment. Scores are
+ * stored as logarithms so they never overflow, and each counter is updated
+ * with a compare-and-set loop (no locks on the watch path).
+ *
+ * Counters are indexed by MediaLibrary ordinals and live in lazily allocated pages.
+ */
+public class TrendingEngine implements WatchListener {
+
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int MAX_PAGES = 1 << 16;   // room for 268M ordinals
+    // Raw value of an untouched counter (0 bits) means "no events yet"
+    private static final long EMPTY = 0L;
+
+    private final MediaLibrary library;
+    private final double lambda;       // decay rate per millisecond
+    private final long landmark;       // reference time for forward decay
+    private final int topK;
+    private final AtomicReferenceArray<AtomicLongArray> pages = new AtomicReferenceArray<>(MAX_PAGES);
+
+    // Current top-K ordinals (highest score first); replaced, never modified in place
+    private volatile int[] topOrdinals = new int[0];
+    // Score an ordinal must beat to enter a full top-K list
+    private volatile double entryThreshold = Double.NEGATIVE_INFINITY;
+
+    /*
+     * halfLifeMillis: time after which a watch counts half as much
+     * topK: size of the continuously maintained trending list
+     */
+    public TrendingEngine(MediaLibrary library, long halfLifeMillis, int topK) {
+        if (halfLifeMillis <= 0 || topK <= 0) {
+            throw new IllegalArgumentException("Half-life and top-K size must be positive");
+        }
+        this.library = library;
+        this.lambda = Math.log(2) / halfLifeMillis;
+        // One millisecond in the past so every real event has a positive log score
+        this.landmark = System.currentTimeMillis() - 1;
+        this.topK = topK;
+    }
+
+    @Override
+    public void mediaWatched(User user, Media media, long timestamp) {
+        int ordinal = library.getOrdinal(media);
+        if (ordinal >= 0) {
+            record(ordinal, timestamp);
+        }
+    }
+
+    // Adds one watch of the given ordinal at the given time
+    public void record(int ordinal, long timestamp) {
+        AtomicLongArray page = page(ordinal);
+        int slot = ordinal & (PAGE_SIZE - 1);
+        double weight = lambda * (timestamp - landmark);
+        long current;
+        double updated;
+        do {
+            current = page.get(slot);
+            updated = current == EMPTY ? weight : logAdd(Double.longBitsToDouble(current), weight);
+        } while (!page.compareAndSet(slot, current, Double.doubleToRawLongBits(updated)));
+
+        if (updated > entryThreshold || contains(topOrdinals, ordinal)) {
+            updateTop(ordinal);
+        }
+    }
+
+    // Decayed watch count of an ordinal as of 'now'
+    public double getDecayedCount(int ordinal, long now) {
+        double score = score(ordinal);
+        return score == Double.NEGATIVE_INFINITY ? 0.0 : Math.exp(score - lambda * (now - landmark));
+    }
+
+    /*
+     * Returns up to 'limit' trending items, most trending first, in O(limit).
+     * Items removed from the library since they were watched are skipped.
+     */
+    public ArrayList<Media> getTrending(int limit) {
+        int[] snapshot = topOrdinals;
+        ArrayList<Media> result = new ArrayList<>();
+        for (int i = 0; i < snapshot.length && result.size() < limit; i++) {
+            Media media = library.getByOrdinal(snapshot[i]);
+            if (media != null) {
+                result.add(media);
+            }
+        }
+        return result;
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    // Rare path: the ordinal is (or may become) part of the top-K, so rebuild the small list
+    private synchronized void updateTop(int ordinal) {
+        int[] current = topOrdinals;
+        int[] next;
+        if (contains(current, ordinal)) {
+            next = current.clone();
+        } else if (current.length < topK) {
+            next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = ordinal;
+        } else {
+            double score = score(ordinal);
+            if (score <= score(current[current.length - 1])) {
+                return;
+            }
+            next = current.clone();
+            next[next.length - 1] = ordinal;
+        }
+        // Insertion sort by score, highest first (K is small)
+        for (int i = 1; i < next.length; i++) {
+            int value = next[i];
+            double valueScore = score(value);
+            int j = i - 1;
+            while (j >= 0 && score(next[j]) < valueScore) {
+                next[j + 1] = next[j];
+                j--;
+            }
+            next[j + 1] = value;
+        }
+        topOrdinals = next;
+        entryThreshold = next.length < topK ? Double.NEGATIVE_INFINITY : score(next[next.length - 1]);
+    }
+
+    private double score(int ordinal) {
+        AtomicLongArray page = pages.get(ordinal >>> PAGE_BITS);
+        if (page == null) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        long raw = page.get(ordinal & (PAGE_SIZE - 1));
+        return raw == EMPTY ? Double.NEGATIVE_INFINITY : Double.longBitsToDouble(raw);
+    }
+
+    private AtomicLongArray page(int ordinal) {
+        int index = ordinal >>> PAGE_BITS;
+        if (ordinal < 0 || index >= MAX_PAGES) {
+            throw new IndexOutOfBoundsException("Ordinal out of range: " + ordinal);
+        }
+        AtomicLongArray page = pages.get(index);
+        if (page == null) {
+            pages.compareAndSet(index, null, new AtomicLongArray(PAGE_SIZE));
+            page = pages.get(index);
+        }
+        return page;
+    }
+
+    // log(exp(a) + exp(b)) without overflow
+    private static double logAdd(double a, double b) {
+        double max = Math.max(a, b);
+        return max + Math.log1p(Math.exp(Math.min(a, b) - max));
+    }
+
+    private static boolean contains(int[] ordinals, int ordinal) {
+        for (int value : ordinals) {
+            if (value == ordinal) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,6 +1,11 @@
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * User class with watch history functionality
@@ -8,10 +13,18 @@ import java.util.Objects;
  */
 public class User {
     private static int idCounter = 1; // Counter to generate unique user IDs automatically
+    // Listeners notified on every watch event (statistics, sketches, ...)
+    private static final List<WatchListener> watchListeners = new CopyOnWriteArrayList<>();
         
     private final String userId;
     private String username;
     private ArrayList<Media> watchHistory;
+    // When each history item was watched (epoch millis, 0 if unknown); same order as watchHistory
+    private long[] watchTimes = new long[16];
+    // How many items of each genre are in the watch history (first-watched order), kept in step with watchHistory
+    private final LinkedHashMap<String, Integer> genreCounts = new LinkedHashMap<>();
+    // Bumped on every change to the watch history so caches can tell when they are stale
+    private volatile long historyVersion = 0;
     
      //Creates a new user with the given name.
      //Automatically generates a unique ID ("User1", "User2")
@@ -27,15 +40,74 @@ public class User {
         this.userId = userId;
         this.username = username;
         this.watchHistory = new ArrayList<>(watchHistory);
+        this.watchTimes = new long[Math.max(16, watchHistory.size())];
+        for (Media item : this.watchHistory) {
+            genreCounts.merge(item.getGenre(), 1, Integer::sum);
+        }
+        }
+
+     // Same, with the time each history item was watched (watchTimes[i] belongs to watchHistory.get(i))
+    public User(String userId, String username, ArrayList<Media> watchHistory, long[] watchTimes) {
+        this(userId, username, watchHistory);
+        System.arraycopy(watchTimes, 0, this.watchTimes, 0, watchHistory.size());
         }
         
      // Adds a media item to the users watch history.
      //Only adds if the media item exists
+    //The history may be read by background threads (e.g. RecommendationScheduler),
+    //so changes and copies of it are synchronized on this user.
     public void watchMedia(Media item) {
+        watchMedia(item, System.currentTimeMillis());
+        }
+
+    // Same as watchMedia(item), for an event that happened at 'timestamp' (e.g. replayed from a log)
+    public void watchMedia(Media item, long timestamp) {
         if (item != null) {
-            watchHistory.add(item);
+            synchronized (this) {
+                recordWatch(item, timestamp);
+                historyVersion++;
+            }
+            for (WatchListener listener : watchListeners) {
+                listener.mediaWatched(this, item, timestamp);
+            }
+            }
+        }
+
+    // Adds several watched items at once (items.get(i) was watched at timestamps[i]).
+    // The history changes in one step, so caches see a single new version;
+    // listeners are still told about every item.
+    public void watchAll(List<Media> items, long[] timestamps) {
+        synchronized (this) {
+            for (int i = 0; i < items.size(); i++) {
+                recordWatch(items.get(i), timestamps[i]);
             }
+            historyVersion++;
         }
+        for (int i = 0; i < items.size(); i++) {
+            for (WatchListener listener : watchListeners) {
+                listener.mediaWatched(this, items.get(i), timestamps[i]);
+            }
+        }
+    }
+
+    // Appends to the history; caller holds the lock
+    private void recordWatch(Media item, long timestamp) {
+        if (watchHistory.size() == watchTimes.length) {
+            watchTimes = Arrays.copyOf(watchTimes, watchTimes.length * 2);
+        }
+        watchTimes[watchHistory.size()] = timestamp;
+        watchHistory.add(item);
+        genreCounts.merge(item.getGenre(), 1, Integer::sum);
+    }
+
+    // Registers a listener that is told about every watch event of every user
+    public static void addWatchListener(WatchListener listener) {
+        watchListeners.add(listener);
+    }
+
+    public static void removeWatchListener(WatchListener listener) {
+        watchListeners.remove(listener);
+    }
         
       //Displays the users complete watch history in the console.
       //If the history is empty, shows: "[username]'s watch history is empty."
@@ -69,9 +141,9 @@ public class User {
             if (watchHistory.isEmpty()) {
                 writer.println("No items in watch history.");
             } else {
+                DetailsWriter details = new DetailsWriter(writer);
                 for (int i = 0; i < watchHistory.size(); i++) {
-                    Media item = watchHistory.get(i);
-                    writer.println((i + 1) + ". " + item.getDisplayDetails());
+                    details.writeNumberedDetails(i + 1, watchHistory.get(i));
                 }
             }
             
@@ -104,9 +176,9 @@ public class User {
                 writer.println("Based on your viewing history, we recommend:");
                 writer.println();
                 
+                DetailsWriter details = new DetailsWriter(writer);
                 for (int i = 0; i < recommendations.size(); i++) {
-                    Media item = recommendations.get(i);
-                    writer.println((i + 1) + ". " + item.getDisplayDetails());
+                    details.writeNumberedDetails(i + 1, recommendations.get(i));
                 }
             }
             
@@ -140,9 +212,38 @@ public class User {
     
     //Returns a copy of the watch history
     //Other classes can see whats been watched but can't change  list.
-    public ArrayList<Media> getWatchHistory() {
+    public synchronized ArrayList<Media> getWatchHistory() {
         return new ArrayList<>(watchHistory); 
     }
+
+    //Number of items in the watch history (without copying it)
+    public synchronized int getWatchCount() {
+        return watchHistory.size();
+    }
+
+    //Returns when each history item was watched (same order as getWatchHistory, 0 if unknown)
+    public synchronized long[] getWatchTimes() {
+        return Arrays.copyOf(watchTimes, watchHistory.size());
+    }
+
+    //Estimated heap bytes of this user's history, watch times and genre counts.
+    //The media items are shared with the library and counted there.
+    public synchronized long estimateMemory() {
+        return MemoryEstimator.shallowSize(User.class) + MemoryEstimator.string(userId) + MemoryEstimator.string(username)
+                + MemoryEstimator.arrayList(watchHistory.size())
+                + MemoryEstimator.primitiveArray(watchTimes.length, 8)
+                + MemoryEstimator.hashMap(genreCounts) + genreCounts.size() * MemoryEstimator.shallowSize(Integer.class);
+    }
+
+    //Version number of the watch history; changes whenever an item is watched
+    public long getHistoryVersion() {
+        return historyVersion;
+    }
+
+    //Returns a copy of the per-genre watch counts (genre -> number of items watched)
+    public synchronized Map<String, Integer> getGenreCounts() {
+        return new LinkedHashMap<>(genreCounts);
+    }
         
      //Generates a user-friendly summary string of this User object.
      //The returned string follows this exact format:
@@ -182,11 +283,38 @@ public class User {
     }
     
     /**
-     * Saves the user's watch history to a persistent file
+     * Saves the user's watch history to a persistent file.
+     * The text file is then the only up-to-date copy, so a binary file written
+     * earlier (see UserHistoryCodec) is deleted rather than left stale.
      * @throws IOException If there's an error writing to the file
      */
-    private void saveWatchHistory() throws IOException {
+    void saveWatchHistory() throws IOException {
+        writeTextHistory();
+        File binary = new File(UserHistoryCodec.fileFor(username));
+        if (binary.exists() && !binary.delete()) {
+            throw new IOException("Could not remove outdated " + binary.getName());
+        }
+    }
+
+    /**
+     * Saves the watch history to the text file and the compact binary file
+     * @throws IOException If there's an error writing either file
+     */
+    void saveWatchHistory(MediaLibrary library) throws IOException {
+        writeTextHistory();
+        UserHistoryCodec.save(this, library);
+    }
+
+    /**
+     * Rewrites only the text history file. Leaves the binary file as it is, so
+     * callers that keep writing text must rewrite or delete it afterwards
+     * (WatchEventIngestor rewrites it once at the end of an ingest).
+     * @throws IOException If there's an error writing the file
+     */
+    void writeTextHistory() throws IOException {
+        Metrics.Span span = Metrics.begin("user.saveWatchHistory");
         String filename = "userdata_" + username + ".txt";
+        ArrayList<Media> watchHistory = getWatchHistory();
         try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
             writer.println("USER_DATA");
             writer.println("Username:" + username);
@@ -194,24 +322,49 @@ public class User {
             writer.println("WatchHistory:");
             
             for (Media item : watchHistory) {
-                // Save in format: MediaType,ID,Title,Genre,Rating,Duration,ExtraInfo
-                if (item instanceof Series) {
-                    Series series = (Series) item;
-                    writer.println("Series," + item.getId() + "," + item.getTitle() + "," + 
-                                 item.getGenre() + "," + item.getRating() + "," + 
-                                 item.getDuration() + "," + series.getNumberOfSeasons());
-                } else if (item instanceof Documentary) {
-                    Documentary doc = (Documentary) item;
-                    writer.println("Documentary," + item.getId() + "," + item.getTitle() + "," + 
-                                 item.getGenre() + "," + item.getRating() + "," + 
-                                 item.getDuration() + "," + doc.getSubject());
-                } else if (item instanceof Movie) {
-                    Movie movie = (Movie) item;
-                    writer.println("Movie," + item.getId() + "," + item.getTitle() + "," + 
-                                 item.getGenre() + "," + item.getRating() + "," + 
-                                 item.getDuration() + "," + movie.getAuthor());
-                }
+                writeHistoryLine(writer, item);
+            }
+        } finally {
+            span.end(watchHistory.size());
+        }
+    }
+
+    /**
+     * Appends newly watched items to a text history file that writeTextHistory
+     * wrote earlier, without rewriting the items already in it
+     * @throws IOException If there's an error writing the file
+     */
+    void appendTextHistory(List<Media> items) throws IOException {
+        Metrics.Span span = Metrics.begin("user.appendWatchHistory");
+        try (PrintWriter writer = new PrintWriter(new FileWriter("userdata_" + username + ".txt", true))) {
+            for (Media item : items) {
+                writeHistoryLine(writer, item);
+            }
+            if (writer.checkError()) {
+                throw new IOException("Could not append to the watch history of " + username);
             }
+        } finally {
+            span.end(items.size());
+        }
+    }
+
+    // Save in format: MediaType,ID,Title,Genre,Rating,Duration,ExtraInfo
+    private static void writeHistoryLine(PrintWriter writer, Media item) {
+        if (item instanceof Series) {
+            Series series = (Series) item;
+            writer.println("Series," + item.getId() + "," + item.getTitle() + "," + 
+                         item.getGenre() + "," + item.getRating() + "," + 
+                         item.getDuration() + "," + series.getNumberOfSeasons());
+        } else if (item instanceof Documentary) {
+            Documentary doc = (Documentary) item;
+            writer.println("Documentary," + item.getId() + "," + item.getTitle() + "," + 
+                         item.getGenre() + "," + item.getRating() + "," + 
+                         item.getDuration() + "," + doc.getSubject());
+        } else if (item instanceof Movie) {
+            Movie movie = (Movie) item;
+            writer.println("Movie," + item.getId() + "," + item.getTitle() + "," + 
+                         item.getGenre() + "," + item.getRating() + "," + 
+                         item.getDuration() + "," + movie.getAuthor());
         }
     }
     
@@ -221,14 +374,54 @@ public class User {
      * @return User object with loaded watch history, or null if file doesn't exist
      */
     public static User loadUserData(String username) {
-        String filename = "userdata_" + username + ".txt";
-        File file = new File(filename);
-        
+        return loadUserData(new File("."), username);
+    }
+
+    /**
+     * Loads the user's watch history from the text file in another directory
+     * (for example one written by WorkloadGenerator)
+     * @return User object with loaded watch history, or null if file doesn't exist
+     */
+    public static User loadUserData(File directory, String username) {
+        Metrics.Span span = Metrics.begin("user.loadUserData");
+        User user = readUserData(new File(directory, "userdata_" + username + ".txt"));
+        span.end(user == null ? 0 : user.watchHistory.size());
+        return user;
+    }
+
+    /**
+     * Loads the user's watch history, preferring the compact binary file
+     * (userdata_<username>.bin, see UserHistoryCodec) when it is at least as new as
+     * the text file and matches the library, and falling back to the text file otherwise.
+     * If the binary file refers to items no longer in the library, the text file (which
+     * stores full records) is used; without one the user is told what was skipped.
+     * @return User object with loaded watch history, or null if no file exists
+     */
+    public static User loadUserData(String username, MediaLibrary library) {
+        File text = new File("userdata_" + username + ".txt");
+        File binary = new File(UserHistoryCodec.fileFor(username));
+        if (binary.exists() && (!text.exists() || binary.lastModified() >= text.lastModified())) {
+            try {
+                return UserHistoryCodec.load(username, library);
+            } catch (UserHistoryCodec.MissingItemsException e) {
+                if (!text.exists()) {
+                    System.out.println("Warning: " + e.getMessage() + "; they were left out of the history");
+                    return e.getPartialUser();
+                }
+                System.out.println(e.getMessage() + ", reading text file");
+            } catch (IOException e) {
+                System.out.println("Binary watch history not usable (" + e.getMessage() + "), reading text file");
+            }
+        }
+        return loadUserData(username);
+    }
+
+    private static User readUserData(File file) {
         if (!file.exists()) {
             return null; // No saved data for this user
         }
         
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
             String line = reader.readLine();
             if (!"USER_DATA".equals(line)) {
                 return null; // Invalid file format
@@ -315,4 +508,15 @@ public class User {
             System.out.println("Warning: Could not save watch history: " + e.getMessage());
         }
     }
+
+    /**
+     * Saves user data when logging out, including the binary history file
+     */
+    public void logout(MediaLibrary library) {
+        try {
+            saveWatchHistory(library);
+        } catch (IOException e) {
+            System.out.println("Warning: Could not save watch history: " + e.getMessage());
+        }
+    }
 }
\ No newline at end of file
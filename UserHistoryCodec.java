@@ -0,0 +1,279 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary format for persisted watch histories (userdata_<username>.bin),
+ * as an alternative to the text userdata_<username>.txt files.
+ *
+ * Layout:
+ *   magic "ADUH" (int), version (byte), username and userId (modified UTF-8),
+ *   ordinal count and ordinal fingerprint of the library it was written against,
+ *   entry count, entries, CRC32 of everything before it (int).
+ *
+ * Each entry is two varints: the media ordinal as a (zigzag) delta from the previous
+ * entry, shifted left one bit, and the watch time as a (zigzag) delta from the previous
+ * one. Items the library has no ordinal for set the low bit and are stored inline with
+ * MediaCodec instead.
+ *
+ * Ordinals are only meaningful for the same catalog, so reading checks that the
+ * library's first 'ordinal count' ordinals have the same fingerprint and fails otherwise;
+ * User.loadUserData(username, library) then falls back to the text file. Items removed
+ * from the library since the file was written make load throw MissingItemsException,
+ * which carries the rest of the history.
+ */
+public final class UserHistoryCodec {
+    private static final int MAGIC = 0x41445548; // "ADUH"
+    private static final byte VERSION = 1;
+
+    private UserHistoryCodec() {
+    }
+
+    /**
+     * Thrown when some history entries refer to items no longer in the library.
+     * The history without them is available from getPartialUser.
+     */
+    public static class MissingItemsException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final transient User partialUser;
+        private final int missing;
+
+        MissingItemsException(User partialUser, int missing) {
+            super(missing + " watched item(s) of " + partialUser.getUsername() + " are no longer in the catalog");
+            this.partialUser = partialUser;
+            this.missing = missing;
+        }
+
+        public User getPartialUser() {
+            return partialUser;
+        }
+
+        public int getMissingCount() {
+            return missing;
+        }
+    }
+
+    public static String fileFor(String username) {
+        return "userdata_" + username + ".bin";
+    }
+
+    // Writes the user's history to userdata_<username>.bin (replacing it atomically)
+    public static void save(User user, MediaLibrary library) throws IOException {
+        Metrics.Span span = Metrics.begin("user.saveBinaryHistory");
+        Path file = Paths.get(fileFor(user.getUsername()));
+        Path temp = Paths.get(fileFor(user.getUsername()) + ".tmp");
+        long[] times;
+        ArrayList<Media> history;
+        synchronized (user) {
+            history = user.getWatchHistory();
+            times = user.getWatchTimes();
+        }
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+            out.write(encode(user, history, times, library));
+        } finally {
+            span.end(history.size());
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+     * Reads userdata_<username>.bin. Returns null if there is no such file; throws
+     * IOException if it is damaged or was written against a different catalog, and
+     * MissingItemsException if some of its items are no longer in the library.
+     */
+    public static User load(String username, MediaLibrary library) throws IOException {
+        Path file = Paths.get(fileFor(username));
+        if (!Files.exists(file)) {
+            return null;
+        }
+        Metrics.Span span = Metrics.begin("user.loadBinaryHistory");
+        User user = null;
+        try {
+            user = decode(Files.readAllBytes(file), library);
+            return user;
+        } finally {
+            span.end(user == null ? 0 : user.getWatchHistory().size());
+        }
+    }
+
+    /*
+     * Converts userdata_<username>.txt to userdata_<username>.bin. Returns false if
+     * there is no text file for the user.
+     */
+    public static boolean convert(String username, MediaLibrary library) throws IOException {
+        User user = User.loadUserData(username);
+        if (user == null) {
+            return false;
+        }
+        save(user, library);
+        return true;
+    }
+
+    /*
+     * Converts every userdata_*.txt file in the working directory.
+     * Usage: java UserHistoryCodec <catalogFile>
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: java UserHistoryCodec <catalogFile>");
+            return;
+        }
+        MediaLibrary library = new MediaLibrary();
+        library.loadFromFile(args[0]);
+        int converted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get("."), "userdata_*.txt")) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                String username = name.substring("userdata_".length(), name.length() - ".txt".length());
+                if (convert(username, library)) {
+                    converted++;
+                }
+            }
+        }
+        System.out.println("Converted " + converted + " user histories");
+    }
+
+    static byte[] encode(User user, ArrayList<Media> history, long[] times, MediaLibrary library) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + history.size() * 4);
+        DataOutputStream out = new DataOutputStream(bytes);
+        int ordinalCount = library.getOrdinalCount();
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeUTF(user.getUsername());
+        out.writeUTF(user.getUserId());
+        writeVarLong(out, ordinalCount);
+        out.writeLong(library.getOrdinalFingerprint(ordinalCount));
+        writeVarLong(out, history.size());
+
+        long previousOrdinal = 0;
+        long previousTime = 0;
+        for (int i = 0; i < history.size(); i++) {
+            Media item = history.get(i);
+            int ordinal = library.getOrdinal(item);
+            if (ordinal >= 0 && library.getByOrdinal(ordinal) != null) {
+                writeVarLong(out, zigzag(ordinal - previousOrdinal) << 1);
+                previousOrdinal = ordinal;
+            } else {
+                writeVarLong(out, 1);
+                MediaCodec.write(out, item);
+            }
+            writeVarLong(out, zigzag(times[i] - previousTime));
+            previousTime = times[i];
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static User decode(byte[] data, MediaLibrary library) throws IOException {
+        if (data.length < 9) {
+            throw new IOException("User history file is truncated");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        if (ByteBuffer.wrap(data).getInt(data.length - 4) != (int) crc.getValue()) {
+            throw new IOException("User history file is corrupt (CRC mismatch)");
+        }
+        try {
+            return decodeEntries(data, library);
+        } catch (BufferUnderflowException | EOFException e) {
+            throw new IOException("User history file is truncated", e);
+        }
+    }
+
+    private static User decodeEntries(byte[] data, MediaLibrary library) throws IOException {
+
+        // The entries are decoded straight from the array; only inline items go through a stream
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, data.length - 4);
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a binary user history file");
+        }
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported user history version " + version);
+        }
+        DataInputStream in = streamAt(data, buffer);
+        String username = in.readUTF();
+        String userId = in.readUTF();
+        buffer.position(data.length - 4 - in.available());
+        long ordinalCount = readVarLong(buffer);
+        long fingerprint = buffer.getLong();
+        if (ordinalCount > library.getOrdinalCount()
+                || library.getOrdinalFingerprint((int) ordinalCount) != fingerprint) {
+            throw new IOException("User history was written against a different catalog");
+        }
+
+        int entries = (int) readVarLong(buffer);
+        ArrayList<Media> history = new ArrayList<>(entries);
+        long[] times = new long[entries];
+        long ordinal = 0;
+        long time = 0;
+        int missing = 0;
+        for (int i = 0; i < entries; i++) {
+            long tag = readVarLong(buffer);
+            Media item;
+            if ((tag & 1) != 0) {
+                in = streamAt(data, buffer);
+                item = MediaCodec.read(in);
+                buffer.position(data.length - 4 - in.available());
+            } else {
+                ordinal += unzigzag(tag >>> 1);
+                item = library.getByOrdinal((int) ordinal);
+            }
+            time += unzigzag(readVarLong(buffer));
+            if (item != null) {
+                times[history.size()] = time;
+                history.add(item);
+            } else {
+                missing++;
+            }
+        }
+        User user = new User(userId, username, history, times);
+        if (missing > 0) {
+            throw new MissingItemsException(user, missing);
+        }
+        return user;
+    }
+
+    // A stream over the rest of the buffer (its available() tells how much was consumed)
+    private static DataInputStream streamAt(byte[] data, ByteBuffer buffer) {
+        return new DataInputStream(new ByteArrayInputStream(data, buffer.position(), buffer.remaining()));
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw new IOException("User history file is truncated");
+            }
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in user history file");
+    }
+}
@@ -0,0 +1,331 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * WatchEventIngestor replays a watch-event log into user histories.
+ *
+ * Log format, one event per line:
+ *   userId,mediaId,timestamp        (timestamp in epoch milliseconds)
+ *
+ * - The calling thread reads the log and resolves users and media. Bad lines and
+ *   events for unknown users or media are rejected in a LoadReport.
+ * - Events are partitioned by user over the worker threads, so each user's events
+ *   are applied in log order by a single worker.
+ * - Workers apply events in batches (User.watchAll) and save each user touched by a
+ *   batch once, after the batch, instead of once per event. The first save of a user
+ *   in an ingest writes the whole text history; later ones append that batch's items,
+ *   so a save costs O(batch), not O(history). A user's binary history file (see
+ *   UserHistoryCodec), if there is one, is rewritten once at the end of the ingest.
+ *   Users should not watch anything else while their events are being ingested.
+ * - Each worker's queue is bounded. When the workers fall behind, the reader waits,
+ *   so memory use does not depend on the size of the log.
+ */
+public class WatchEventIngestor {
+    private static final int DEFAULT_BATCH_SIZE = 1024;
+    // Batches waiting per worker before the reader has to wait
+    private static final int QUEUE_BATCHES = 4;
+
+    private static final class WatchEvent {
+        final User user;
+        final Media media;
+        final long timestamp;
+
+        WatchEvent(User user, Media media, long timestamp) {
+            this.user = user;
+            this.media = media;
+            this.timestamp = timestamp;
+        }
+    }
+
+    // Marks the end of the log on every queue
+    private static final ArrayList<WatchEvent> END = new ArrayList<>();
+
+    /**
+     * Outcome of one ingest
+     */
+    public static class Result {
+        private final LoadReport report;
+        private final long batches;
+        private final long saves;
+        private final long saveFailures;
+        private final long failedBatches;
+        private final long elapsedMillis;
+
+        Result(LoadReport report, long batches, long saves, long saveFailures, long failedBatches, long elapsedMillis) {
+            this.report = report;
+            this.batches = batches;
+            this.saves = saves;
+            this.saveFailures = saveFailures;
+            this.failedBatches = failedBatches;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        // Lines read, events applied ("loaded") and rejected lines
+        public LoadReport getReport() {
+            return report;
+        }
+
+        public long getBatches() {
+            return batches;
+        }
+
+        // User files written (one per user per batch, plus one per binary history at the end)
+        public long getSaves() {
+            return saves;
+        }
+
+        public long getSaveFailures() {
+            return saveFailures;
+        }
+
+        // Batches a listener or save threw an unexpected exception for (the rest still ran)
+        public long getFailedBatches() {
+            return failedBatches;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "WatchIngestResult [Events: " + report.getLoaded() + ", Rejected: " + report.getRejected() +
+                   ", Batches: " + batches + ", Saves: " + saves + ", Save failures: " + saveFailures +
+                   ", Failed batches: " + failedBatches + ", Time: " + elapsedMillis + " ms]";
+        }
+    }
+
+    private final MediaLibrary library;
+    private final Function<String, User> userResolver;
+    private final int workers;
+    private final int batchSize;
+    private final boolean persist;
+
+    /*
+     * userResolver maps a userId from the log to a User (null for unknown users).
+     * When persist is false, histories are only updated in memory.
+     */
+    public WatchEventIngestor(MediaLibrary library, Function<String, User> userResolver,
+                              int workers, boolean persist) {
+        this(library, userResolver, workers, DEFAULT_BATCH_SIZE, persist);
+    }
+
+    public WatchEventIngestor(MediaLibrary library, Function<String, User> userResolver,
+                              int workers, int batchSize, boolean persist) {
+        if (workers < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("workers and batchSize must be at least 1");
+        }
+        this.library = library;
+        this.userResolver = userResolver;
+        this.workers = workers;
+        this.batchSize = batchSize;
+        this.persist = persist;
+    }
+
+    // Reads the whole log and returns once every event is applied and saved
+    public Result ingest(String filename) throws InvalidMediaDataException {
+        Metrics.Span span = Metrics.begin("user.ingestWatchEvents");
+        long start = System.currentTimeMillis();
+        LoadReport report = new LoadReport(filename);
+        AtomicLong batches = new AtomicLong();
+        AtomicLong saves = new AtomicLong();
+        AtomicLong saveFailures = new AtomicLong();
+        AtomicLong failedBatches = new AtomicLong();
+
+        ArrayList<BlockingQueue<ArrayList<WatchEvent>>> queues = new ArrayList<>();
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            BlockingQueue<ArrayList<WatchEvent>> queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+            queues.add(queue);
+            Thread thread = new Thread(() -> drain(queue, batches, saves, saveFailures, failedBatches), "watch-ingest-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+
+        try {
+            read(filename, report, queues);
+        } finally {
+            // Always stop the workers, also when reading failed half way
+            for (BlockingQueue<ArrayList<WatchEvent>> queue : queues) {
+                putUninterruptibly(queue, END);
+            }
+            for (Thread thread : threads) {
+                joinUninterruptibly(thread);
+            }
+            span.end(report.getLoaded());
+        }
+        return new Result(report, batches.get(), saves.get(), saveFailures.get(), failedBatches.get(),
+                System.currentTimeMillis() - start);
+    }
+
+    private void read(String filename, LoadReport report,
+                      ArrayList<BlockingQueue<ArrayList<WatchEvent>>> queues) throws InvalidMediaDataException {
+        ArrayList<ArrayList<WatchEvent>> pending = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            pending.add(new ArrayList<>(batchSize));
+        }
+        // Resolved users by ID; unknown IDs map to an empty Optional so they are resolved only once
+        HashMap<String, Optional<User>> users = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String[] tokens = line.split(",");
+                if (tokens.length < 3) {
+                    report.recordRejected(lineNumber, line, "Line " + lineNumber + ": Expected userId,mediaId,timestamp");
+                    continue;
+                }
+                long timestamp;
+                try {
+                    timestamp = Long.parseLong(tokens[2].trim());
+                } catch (NumberFormatException e) {
+                    report.recordRejected(lineNumber, line, "Line " + lineNumber + ": Invalid timestamp '" + tokens[2].trim() + "'");
+                    continue;
+                }
+                String userId = tokens[0].trim();
+                User user = users.computeIfAbsent(userId, id -> Optional.ofNullable(userResolver.apply(id))).orElse(null);
+                if (user == null) {
+                    report.recordRejected(lineNumber, line, "Line " + lineNumber + ": Unknown user '" + userId + "'");
+                    continue;
+                }
+                Media media = library.getById(tokens[1].trim());
+                if (media == null) {
+                    report.recordRejected(lineNumber, line, "Line " + lineNumber + ": Unknown media '" + tokens[1].trim() + "'");
+                    continue;
+                }
+                report.recordLoaded();
+
+                int partition = Math.floorMod(user.getUserId().hashCode(), workers);
+                ArrayList<WatchEvent> batch = pending.get(partition);
+                batch.add(new WatchEvent(user, media, timestamp));
+                if (batch.size() == batchSize) {
+                    // Blocks while the worker is QUEUE_BATCHES behind (backpressure)
+                    putUninterruptibly(queues.get(partition), batch);
+                    pending.set(partition, new ArrayList<>(batchSize));
+                }
+            }
+        } catch (IOException e) {
+            throw new InvalidMediaDataException("Error reading file '" + filename + "': " + e.getMessage(), e);
+        } finally {
+            for (int i = 0; i < workers; i++) {
+                if (!pending.get(i).isEmpty()) {
+                    putUninterruptibly(queues.get(i), pending.get(i));
+                }
+            }
+        }
+    }
+
+    // Worker loop: apply each batch per user, then save every user it touched once
+    private void drain(BlockingQueue<ArrayList<WatchEvent>> queue, AtomicLong batches,
+                       AtomicLong saves, AtomicLong saveFailures, AtomicLong failedBatches) {
+        // Users this worker saved (each user has one worker), mapped to whether their
+        // text history file is complete so later batches can append to it
+        HashMap<User, Boolean> written = new HashMap<>();
+        while (true) {
+            ArrayList<WatchEvent> batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (batch == END) {
+                syncBinaryHistories(written, saves, saveFailures);
+                return;
+            }
+            try {
+                apply(batch, saves, saveFailures, written);
+                batches.incrementAndGet();
+            } catch (RuntimeException e) {
+                // Keep draining: a dead worker would block the reader forever
+                failedBatches.incrementAndGet();
+            }
+        }
+    }
+
+    private void apply(ArrayList<WatchEvent> batch, AtomicLong saves, AtomicLong saveFailures, HashMap<User, Boolean> written) {
+        LinkedHashMap<User, ArrayList<WatchEvent>> byUser = new LinkedHashMap<>();
+        for (WatchEvent event : batch) {
+            byUser.computeIfAbsent(event.user, u -> new ArrayList<>()).add(event);
+        }
+        LinkedHashMap<User, ArrayList<Media>> itemsByUser = new LinkedHashMap<>();
+        for (Map.Entry<User, ArrayList<WatchEvent>> entry : byUser.entrySet()) {
+            ArrayList<WatchEvent> events = entry.getValue();
+            ArrayList<Media> items = new ArrayList<>(events.size());
+            long[] timestamps = new long[events.size()];
+            for (int i = 0; i < events.size(); i++) {
+                items.add(events.get(i).media);
+                timestamps[i] = events.get(i).timestamp;
+            }
+            entry.getKey().watchAll(items, timestamps);
+            itemsByUser.put(entry.getKey(), items);
+        }
+        if (persist) {
+            for (Map.Entry<User, ArrayList<Media>> entry : itemsByUser.entrySet()) {
+                User user = entry.getKey();
+                try {
+                    if (written.getOrDefault(user, false)) {
+                        user.appendTextHistory(entry.getValue());
+                    } else {
+                        user.writeTextHistory();
+                    }
+                    written.put(user, true);
+                    saves.incrementAndGet();
+                } catch (IOException e) {
+                    // The file may be incomplete: write it in full next time
+                    written.put(user, false);
+                    saveFailures.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    // Brings existing binary history files up to date with the text files written by this ingest
+    private void syncBinaryHistories(HashMap<User, Boolean> written, AtomicLong saves, AtomicLong saveFailures) {
+        for (User user : written.keySet()) {
+            if (!new File(UserHistoryCodec.fileFor(user.getUsername())).exists()) {
+                continue;
+            }
+            try {
+                UserHistoryCodec.save(user, library);
+                saves.incrementAndGet();
+            } catch (IOException e) {
+                saveFailures.incrementAndGet();
+            }
+        }
+    }
+
+    private static void putUninterruptibly(BlockingQueue<ArrayList<WatchEvent>> queue, ArrayList<WatchEvent> batch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(batch);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,8 @@
+/**
+ * Listener interface for watch events.
+ * Implementations are registered with User.addWatchListener and are called
+ * every time any user watches a media item.
+ */
+public interface WatchListener {
+    void mediaWatched(User user, Media media, long timestamp);
+}
@@ -0,0 +1,166 @@
+import java.util.*;
+
+/**
+ * WatchSketches summarizes all watch events with probabilistic sketches:
+ * - a HyperLogLog per media ID for the number of distinct viewers
+ * - a Count-Min sketch plus a top-K heap for the most watched titles
+ *
+ * Register it with User.addWatchListener. Instances built with the same settings
+ * (for example one per thread or per shard) can be combined with merge().
+ */
+public class WatchSketches implements WatchListener {
+
+    public static final int DEFAULT_PRECISION = 10;   // ~3% error, 1 KB per title
+    public static final int DEFAULT_DEPTH = 5;
+    public static final int DEFAULT_WIDTH = 2048;
+    public static final int DEFAULT_TOP_K = 10;
+
+    /**
+     * A media ID together with its estimated watch count
+     */
+    public static class HeavyHitter {
+        private final String mediaId;
+        private final long count;
+
+        HeavyHitter(String mediaId, long count) {
+            this.mediaId = mediaId;
+            this.count = count;
+        }
+
+        public String getMediaId() {
+            return mediaId;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return mediaId + " (" + count + " watches)";
+        }
+    }
+
+    private final int precision;
+    private final int topK;
+    private final HashMap<String, HyperLogLog> viewersById = new HashMap<>();
+    private final CountMinSketch watchCounts;
+    // Current heavy hitters: min-heap on count plus an index by media ID
+    private final PriorityQueue<HeavyHitter> topHeap =
+            new PriorityQueue<>((a, b) -> Long.compare(a.count, b.count));
+    private final HashMap<String, HeavyHitter> topById = new HashMap<>();
+
+    public WatchSketches() {
+        this(DEFAULT_PRECISION, DEFAULT_DEPTH, DEFAULT_WIDTH, DEFAULT_TOP_K);
+    }
+
+    public WatchSketches(int precision, int depth, int width, int topK) {
+        if (precision < HyperLogLog.MIN_PRECISION || precision > HyperLogLog.MAX_PRECISION) {
+            throw new IllegalArgumentException("Precision must be between " + HyperLogLog.MIN_PRECISION
+                                               + " and " + HyperLogLog.MAX_PRECISION);
+        }
+        if (topK <= 0) {
+            throw new IllegalArgumentException("topK must be positive");
+        }
+        this.precision = precision;
+        this.topK = topK;
+        this.watchCounts = new CountMinSketch(depth, width);
+    }
+
+    @Override
+    public void mediaWatched(User user, Media media, long timestamp) {
+        record(user.getUserId(), media.getId());
+    }
+
+    // Records one watch of mediaId by userId
+    public synchronized void record(String userId, String mediaId) {
+        viewersById.computeIfAbsent(mediaId, id -> new HyperLogLog(precision)).add(userId);
+        offer(mediaId, watchCounts.add(mediaId, 1));
+    }
+
+    // Estimated number of distinct users that watched the media item
+    public synchronized long getDistinctViewers(String mediaId) {
+        HyperLogLog viewers = viewersById.get(mediaId);
+        return viewers == null ? 0 : viewers.estimate();
+    }
+
+    // Estimated number of watches of the media item
+    public synchronized long getWatchCount(String mediaId) {
+        return watchCounts.estimate(mediaId);
+    }
+
+    // The most watched titles, highest count first
+    public synchronized ArrayList<HeavyHitter> getTopWatched() {
+        ArrayList<HeavyHitter> result = new ArrayList<>(topHeap);
+        result.sort((a, b) -> Long.compare(b.count, a.count));
+        return result;
+    }
+
+    /*
+     * Combines another instance into this one. The other instance must use the same
+     * precision and Count-Min dimensions, or an IllegalArgumentException is thrown
+     * before anything changes. Heavy hitters are re-estimated from the
+     * merged Count-Min sketch over the union of both candidate sets.
+     */
+    public void merge(WatchSketches other) {
+        if (other == this) {
+            return;
+        }
+        // Check both sketches up front: a mismatch found half way would leave this one half merged
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Cannot merge WatchSketches with different HyperLogLog precision");
+        }
+        if (other.watchCounts.getDepth() != watchCounts.getDepth()
+                || other.watchCounts.getWidth() != watchCounts.getWidth()) {
+            throw new IllegalArgumentException("Cannot merge WatchSketches with different Count-Min dimensions");
+        }
+        // Copy the other side's state first so the two locks are never held together
+        HashMap<String, HyperLogLog> otherViewers;
+        CountMinSketch otherCounts;
+        Set<String> candidates;
+        synchronized (other) {
+            otherViewers = new HashMap<>();
+            for (Map.Entry<String, HyperLogLog> entry : other.viewersById.entrySet()) {
+                HyperLogLog copy = new HyperLogLog(other.precision);
+                copy.merge(entry.getValue());
+                otherViewers.put(entry.getKey(), copy);
+            }
+            otherCounts = new CountMinSketch(other.watchCounts.getDepth(), other.watchCounts.getWidth());
+            otherCounts.merge(other.watchCounts);
+            candidates = new HashSet<>(other.topById.keySet());
+        }
+        synchronized (this) {
+            for (Map.Entry<String, HyperLogLog> entry : otherViewers.entrySet()) {
+                HyperLogLog mine = viewersById.get(entry.getKey());
+                if (mine == null) {
+                    viewersById.put(entry.getKey(), entry.getValue());
+                } else {
+                    mine.merge(entry.getValue());
+                }
+            }
+            watchCounts.merge(otherCounts);
+            candidates.addAll(topById.keySet());
+            topHeap.clear();
+            topById.clear();
+            for (String mediaId : candidates) {
+                offer(mediaId, watchCounts.estimate(mediaId));
+            }
+        }
+    }
+
+    // Updates the top-K heap with a new estimate for mediaId
+    private void offer(String mediaId, long count) {
+        HeavyHitter existing = topById.remove(mediaId);
+        if (existing != null) {
+            topHeap.remove(existing);
+        } else if (topHeap.size() >= topK) {
+            if (count <= topHeap.peek().count) {
+                return;
+            }
+            topById.remove(topHeap.poll().mediaId);
+        }
+        HeavyHitter entry = new HeavyHitter(mediaId, count);
+        topHeap.add(entry);
+        topById.put(mediaId, entry);
+    }
+}
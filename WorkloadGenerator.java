@@ -0,0 +1,172 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * WorkloadGenerator writes synthetic data sets for load testing:
+ * - a catalog in the media_data.txt CSV format (Series, Documentary and Movie rows)
+ * - user watch histories in the userdata_<username>.txt format written by User
+ *
+ * Genres follow a skewed (Zipf-like) popularity, ratings are roughly normal
+ * around 7.0, durations depend on the media type, and users mostly watch
+ * popular titles from a few favourite genres.
+ *
+ * Usage: java WorkloadGenerator <outputDir> <items> <users> <historyLength> [seed]
+ */
+public class WorkloadGenerator {
+
+    static final String[] GENRES = {
+        "Drama", "Comedy", "Crime", "Action", "Thriller", "Sci-fi", "Documentary", "Romance",
+        "Fantasy", "Horror", "Mystery", "Animation", "Nature", "History", "Sports", "Music"
+    };
+    static final String[] TITLE_WORDS = {
+        "Dark", "Night", "Last", "City", "Blue", "Planet", "Secret", "Road", "House", "Fire",
+        "River", "Silent", "Golden", "Storm", "Empire", "Garden", "Shadow", "Lost", "Winter", "Star",
+        "Wild", "Broken", "Hidden", "Iron", "Ocean", "Crown", "Edge", "Frontier", "Echo", "Signal"
+    };
+    private static final String[] NAMES = {
+        "Nolan", "Villeneuve", "Bigelow", "Kurosawa", "Gerwig", "Scorsese", "Bong", "Campion",
+        "Attenborough", "Herzog", "Varda", "Lee", "Fincher", "Coppola", "Ramsay", "Wong"
+    };
+    private static final String[] SUBJECTS = {
+        "Oceans", "Space", "Wildlife", "Climate", "Technology", "History", "Food", "Music",
+        "Sports", "Crime", "Art", "Medicine", "Economics", "Architecture", "Travel", "Science"
+    };
+
+    // Share of a user's history drawn from their favourite genres; the rest follows overall popularity
+    private static final double FAVOURITE_GENRE_SHARE = 0.8;
+    private static final int MAX_FAVOURITE_GENRES = 3;
+
+    private final Random random;
+    private final double[] genreWeights;
+
+    public WorkloadGenerator(long seed) {
+        this.random = new Random(seed);
+        this.genreWeights = zipfCumulative(GENRES.length, 1.0);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.out.println("Usage: java WorkloadGenerator <outputDir> <items> <users> <historyLength> [seed]");
+            return;
+        }
+        File dir = new File(args[0]);
+        int items = Integer.parseInt(args[1]);
+        int users = Integer.parseInt(args[2]);
+        int historyLength = Integer.parseInt(args[3]);
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 42L;
+
+        WorkloadGenerator generator = new WorkloadGenerator(seed);
+        dir.mkdirs();
+        File catalog = new File(dir, "catalog.txt");
+        ArrayList<String> rows = generator.writeCatalog(catalog, items);
+        generator.writeUsers(dir, rows, users, historyLength);
+        System.out.println("Wrote " + items + " items to " + catalog + " and " + users + " user histories to " + dir);
+    }
+
+    /*
+     * Writes 'count' catalog rows and returns them (they are reused to build
+     * user histories, which repeat the full media line).
+     */
+    public ArrayList<String> writeCatalog(File file, int count) throws IOException {
+        ArrayList<String> rows = new ArrayList<>(count);
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            for (int i = 1; i <= count; i++) {
+                String row = nextRow(i);
+                rows.add(row);
+                writer.println(row);
+            }
+        }
+        return rows;
+    }
+
+    /*
+     * Writes one userdata_<username>.txt file per user into 'dir'. Each user has one
+     * to MAX_FAVOURITE_GENRES favourite genres (picked by genre popularity) and draws
+     * FAVOURITE_GENRE_SHARE of their history from them. Within a genre, and for the
+     * rest of the history, earlier catalog rows are more popular.
+     */
+    public void writeUsers(File dir, ArrayList<String> rows, int users, int historyLength) throws IOException {
+        double[] popularity = zipfCumulative(rows.size(), 0.9);
+        HashMap<String, Integer> genreIndex = new HashMap<>();
+        for (int g = 0; g < GENRES.length; g++) {
+            genreIndex.put(GENRES[g], g);
+        }
+        ArrayList<ArrayList<Integer>> rowsByGenre = new ArrayList<>();
+        for (int g = 0; g < GENRES.length; g++) {
+            rowsByGenre.add(new ArrayList<>());
+        }
+        for (int r = 0; r < rows.size(); r++) {
+            Integer genre = genreIndex.get(rows.get(r).split(",")[3]);
+            if (genre != null) {
+                rowsByGenre.get(genre).add(r);
+            }
+        }
+        double[][] genrePopularity = new double[GENRES.length][];
+        for (int g = 0; g < GENRES.length; g++) {
+            genrePopularity[g] = zipfCumulative(rowsByGenre.get(g).size(), 0.9);
+        }
+
+        for (int u = 1; u <= users; u++) {
+            int[] favourites = new int[1 + random.nextInt(MAX_FAVOURITE_GENRES)];
+            for (int f = 0; f < favourites.length; f++) {
+                favourites[f] = sample(genreWeights);
+            }
+            String username = "loaduser" + u;
+            File file = new File(dir, "userdata_" + username + ".txt");
+            try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+                writer.println("USER_DATA");
+                writer.println("Username:" + username);
+                writer.println("UserId:User" + u);
+                writer.println("WatchHistory:");
+                for (int i = 0; i < historyLength; i++) {
+                    int genre = favourites[random.nextInt(favourites.length)];
+                    ArrayList<Integer> inGenre = rowsByGenre.get(genre);
+                    int row = random.nextDouble() < FAVOURITE_GENRE_SHARE && !inGenre.isEmpty()
+                            ? inGenre.get(sample(genrePopularity[genre])) : sample(popularity);
+                    writer.println(rows.get(row));
+                }
+            }
+        }
+    }
+
+    // One CSV row: Type,ID,Title,Genre,Rating,Duration,Extra
+    String nextRow(int number) {
+        String genre = GENRES[sample(genreWeights)];
+        String title = TITLE_WORDS[random.nextInt(TITLE_WORDS.length)] + " "
+                + TITLE_WORDS[random.nextInt(TITLE_WORDS.length)] + " " + number;
+        double rating = Math.round(Math.max(1.0, Math.min(10.0, 7.0 + random.nextGaussian() * 1.2)) * 10) / 10.0;
+        double type = random.nextDouble();
+        if (type < 0.40) {
+            int duration = 80 + random.nextInt(100);
+            return "Movie,M" + number + "," + title + "," + genre + "," + rating + "," + duration + ","
+                    + NAMES[random.nextInt(NAMES.length)];
+        } else if (type < 0.75) {
+            int duration = 20 + random.nextInt(41);
+            return "Series,S" + number + "," + title + "," + genre + "," + rating + "," + duration + ","
+                    + (1 + random.nextInt(10));
+        } else {
+            int duration = 40 + random.nextInt(81);
+            return "Documentary,D" + number + "," + title + "," + genre + "," + rating + "," + duration + ","
+                    + SUBJECTS[random.nextInt(SUBJECTS.length)];
+        }
+    }
+
+    // Cumulative Zipf distribution over n ranks with exponent s
+    static double[] zipfCumulative(int n, double s) {
+        double[] cumulative = new double[n];
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            total += 1.0 / Math.pow(i + 1, s);
+            cumulative[i] = total;
+        }
+        for (int i = 0; i < n; i++) {
+            cumulative[i] /= total;
+        }
+        return cumulative;
+    }
+
+    private int sample(double[] cumulative) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(cumulative.length - 1, index < 0 ? -index - 1 : index);
+    }
+}